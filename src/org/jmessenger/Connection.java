@@ -1,18 +1,43 @@
 package org.jmessenger;
 
+import javax.net.ssl.SSLEngine;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
 
 /**
  * A class responsible for sending and receiving messages,
- * using a <code>Socket</code> instance
+ * using a <code>Socket</code> instance, optionally secured with TLS.
+ * <p>
+ * Outgoing messages are queued by lane and written by a separate writer thread,
+ * which sends control messages ahead of chat messages.
  */
 public class Connection {
+    // maximum number of queued chat messages; senders wait when the chat lane is full
+    private static final int CHAT_LANE_CAPACITY = 256;
+    // maximum number of control messages sent in a row while chat messages are waiting
+    private static final int MAX_CONTROL_BURST = 8;
+    // time given to the writer to send queued messages when the connection is closed
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
     private final Socket socket;
     private final ObjectInputStream objectInputStream;
     private final ObjectOutputStream objectOutputStream;
+    // Queues of outgoing messages, one per lane; also used as a lock for the queue state below
+    private final Map<Lane, ArrayDeque<Message>> lanes = new EnumMap<>(Lane.class);
+    private final Thread writer;
+    private boolean closed = false;
+    // message sent after all the queued ones when the connection is closed, if any
+    private Message lastMessage = null;
+    private IOException writeError = null;
 
     /**
      * Creates a connection associated with the given socket.
@@ -20,21 +45,170 @@ public class Connection {
      * @throws IOException if connection fails or the socket is not connected
      */
     public Connection(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    /**
+     * Creates a connection associated with the given socket, encrypting all traffic with the given engine.
+     * The TLS handshake is performed before this constructor returns.
+     * @param socket a <code>Socket</code> instance which will be used to send and receive messages
+     * @param engine an <code>SSLEngine</code> instance, or null to send messages in plain text
+     * @throws IOException if connection or handshake fails or the socket is not connected
+     */
+    public Connection(Socket socket, SSLEngine engine) throws IOException {
         this.socket = socket;
-        objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-        objectInputStream = new ObjectInputStream(socket.getInputStream());
+        OutputStream outputStream;
+        InputStream inputStream;
+        if (engine == null) {
+            outputStream = socket.getOutputStream();
+            inputStream = socket.getInputStream();
+        } else {
+            // messages and handshake flights are written whole, so Nagle's algorithm would only delay them
+            socket.setTcpNoDelay(true);
+            TlsChannel channel = new TlsChannel(
+                    Channels.newChannel(socket.getInputStream()),
+                    Channels.newChannel(socket.getOutputStream()),
+                    engine);
+            channel.handshake();
+            // buffer the output, so that each message goes in as few TLS records as possible
+            outputStream = new BufferedOutputStream(Channels.newOutputStream(channel));
+            inputStream = Channels.newInputStream(channel);
+        }
+        objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.flush();
+        objectInputStream = new ObjectInputStream(inputStream);
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new ArrayDeque<>());
+        }
+        writer = new Thread(this::writeMessages, "Connection writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     /**
-     * Send a message via the socket, associated with this connection.
+     * Queue a message to be sent via the socket, associated with this connection.
+     * The message is sent in the lane of its type, after the messages queued in that lane before it.
+     * The message must not be modified after this call.
+     * This method blocks while the chat lane is full.
      * @param message the <code>Message</code> object to be sent
-     * @throws IOException if connection fails
+     * @throws IOException if the connection is closed or a previous message failed to be sent
      */
     public void sendMessage(Message message) throws IOException {
         if (message==null) return;
-        // here we synchronize the stream rather than this connection to avoid deadlock
-        synchronized (objectOutputStream) {
-            objectOutputStream.writeObject(message);
+        ArrayDeque<Message> queue = lanes.get(message.getType().getLane());
+        synchronized (lanes) {
+            while (true) {
+                if (writeError != null) throw new IOException("Connection failed", writeError);
+                if (closed) throw new IOException("Connection closed");
+                if (queue.size() < CHAT_LANE_CAPACITY || message.getType().getLane() == Lane.CONTROL) break;
+                try {
+                    lanes.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting to send a message", e);
+                }
+            }
+            queue.add(message);
+            lanes.notifyAll();
+        }
+    }
+
+    /**
+     * Queue a message to be sent like <code>sendMessage</code>, but without waiting:
+     * a chat message is not queued if the chat lane already holds the given number of messages.
+     * The limit may be above the chat lane capacity, e.g. for a message shared by many connections,
+     * which costs each queue only a reference.
+     * @param message the <code>Message</code> object to be sent
+     * @param maxQueued maximum number of messages in the chat lane
+     * @return <code>true</code> if the message is queued, <code>false</code> if the chat lane is full
+     * @throws IOException if the connection is closed or a previous message failed to be sent
+     */
+    public boolean offerMessage(Message message, int maxQueued) throws IOException {
+        if (message==null) return true;
+        ArrayDeque<Message> queue = lanes.get(message.getType().getLane());
+        synchronized (lanes) {
+            if (writeError != null) throw new IOException("Connection failed", writeError);
+            if (closed) throw new IOException("Connection closed");
+            if (queue.size() >= maxQueued && message.getType().getLane() == Lane.CHAT) return false;
+            queue.add(message);
+            lanes.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Get the number of messages waiting to be sent in the given lane.
+     * @param lane lane of the messages
+     * @return number of queued messages
+     */
+    public int getQueueDepth(Lane lane) {
+        synchronized (lanes) {
+            return lanes.get(lane).size();
+        }
+    }
+
+    /**
+     * Writer thread body: send queued messages until the connection is closed and the queues are empty.
+     * Control messages go first, but after <code>MAX_CONTROL_BURST</code> control messages
+     * in a row one waiting chat message is sent, so chat is never starved.
+     */
+    private void writeMessages() {
+        ArrayDeque<Message> control = lanes.get(Lane.CONTROL);
+        ArrayDeque<Message> chat = lanes.get(Lane.CHAT);
+        int controlBurst = 0;
+        while (true) {
+            Message message;
+            boolean moreQueued;
+            synchronized (lanes) {
+                while (control.isEmpty() && chat.isEmpty() && !closed) {
+                    try {
+                        lanes.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (chat.isEmpty()) controlBurst = 0;
+                if (control.isEmpty() && chat.isEmpty()) {
+                    if (lastMessage == null) return;
+                    message = lastMessage;
+                    lastMessage = null;
+                } else if (!control.isEmpty() && controlBurst < MAX_CONTROL_BURST) {
+                    message = control.poll();
+                    controlBurst++;
+                } else {
+                    message = chat.poll();
+                    controlBurst = 0;
+                }
+                moreQueued = !control.isEmpty() || !chat.isEmpty();
+                // wake up senders waiting for room in the chat lane
+                lanes.notifyAll();
+            }
+            try {
+                // here we synchronize the stream rather than this connection to avoid deadlock
+                synchronized (objectOutputStream) {
+                    objectOutputStream.writeObject(message);
+                    // forget the objects written so far, otherwise both streams keep every message (and every attachment chunk) forever
+                    objectOutputStream.reset();
+                    // while more messages are queued, let them share network writes; control messages never wait
+                    if (!moreQueued || message.getType().getLane() == Lane.CONTROL)
+                        objectOutputStream.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                // a runtime exception, e.g. from a stream adapter, fails the connection too, so that senders do not wait forever
+                synchronized (lanes) {
+                    writeError = e instanceof IOException ? (IOException) e : new IOException(e);
+                    control.clear();
+                    chat.clear();
+                    lanes.notifyAll();
+                }
+                // the peer is gone: close the socket, so that a reader blocked on it fails too
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    // nothing more to do
+                }
+                return;
+            }
         }
     }
 
@@ -61,10 +235,53 @@ public class Connection {
     }
 
     /**
-     * Close the connection: close the associated socket.
+     * Close the connection at once, dropping the queued messages.
+     * Unlike <code>close</code>, this method does not wait for the peer.
+     * @throws IOException if closing the socket fails
+     */
+    public void abort() throws IOException {
+        synchronized (lanes) {
+            closed = true;
+            lastMessage = null;
+            for (ArrayDeque<Message> queue : lanes.values()) {
+                queue.clear();
+            }
+            lanes.notifyAll();
+        }
+        socket.close();
+    }
+
+    /**
+     * Close the connection: send the queued messages and close the associated socket.
      * @throws IOException if connection fails
      */
     public void close() throws IOException {
+        close(null);
+    }
+
+    /**
+     * Close the connection: send the queued messages of all lanes, then the given message, and close the socket.
+     * Unlike a message sent before <code>close</code>, the last message cannot overtake queued messages
+     * of a lower priority lane, e.g. a <code>DISCONNECT</code> sent after chat messages.
+     * @param message the last message to be sent, or null
+     * @throws IOException if connection fails
+     */
+    public void close(Message message) throws IOException {
+        synchronized (lanes) {
+            if (!closed && writeError == null) lastMessage = message;
+            closed = true;
+            lanes.notifyAll();
+        }
+        try {
+            writer.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            // the peer does not take the queued messages, drop them
+            socket.close();
+            return;
+        }
         objectOutputStream.close();
         objectInputStream.close();
         socket.close();
@@ -0,0 +1,17 @@
+package org.jmessenger;
+
+/**
+ * Priority lane of outgoing messages.
+ * Each connection sends messages of the control lane before chat messages,
+ * keeping the order of messages within a lane.
+ */
+public enum Lane {
+    /**
+     * Login, disconnect and other protocol messages
+     */
+    CONTROL,
+    /**
+     * Chat text and attachment data
+     */
+    CHAT
+}
@@ -1,13 +1,29 @@
 package org.jmessenger;
 
 import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Class containing the message data: message type and (optionally) text
+ * Class containing the message data: message type and (optionally) text.
+ * Attachment messages also carry the transfer id, a file offset or size, and a chunk of file data.
+ * Chat messages carry an id given by the sending client, which lets the server drop resent duplicates,
+ * and a sequence number given by the server, which lets clients drop duplicates and resume after reconnecting.
+ * Search results carry the found messages, and roster messages carry the status of users.
  */
 public class Message implements Serializable {
     private MessageType type;
     private String text;
+    private String sender;
+    private long messageId;
+    private long sequence;
+    // time of broadcasting in milliseconds since the epoch, set by the server
+    private long timestamp;
+    private long transferId;
+    private long offset;
+    private byte[] data;
+    private List<Message> results;
+    private Map<String, PresenceStatus> roster;
 
     public Message(MessageType type) {
         this.type = type;
@@ -18,6 +34,20 @@ public class Message implements Serializable {
         this.text = text;
     }
 
+    /**
+     * Create an attachment message.
+     * @param type one of the <code>ATTACHMENT_*</code> types
+     * @param transferId id of the transfer, chosen by the uploading client
+     * @param offset file offset of the chunk, or the file size for offers and notices
+     * @param data chunk of file data, or null
+     */
+    public Message(MessageType type, long transferId, long offset, byte[] data) {
+        this.type = type;
+        this.transferId = transferId;
+        this.offset = offset;
+        this.data = data;
+    }
+
     public MessageType getType() {
         return type;
     }
@@ -29,4 +59,64 @@ public class Message implements Serializable {
     public void setText(String text) {
         this.text = text;
     }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public void setSender(String sender) {
+        this.sender = sender;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(long messageId) {
+        this.messageId = messageId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public List<Message> getResults() {
+        return results;
+    }
+
+    public void setResults(List<Message> results) {
+        this.results = results;
+    }
+
+    public Map<String, PresenceStatus> getRoster() {
+        return roster;
+    }
+
+    public void setRoster(Map<String, PresenceStatus> roster) {
+        this.roster = roster;
+    }
 }
@@ -4,10 +4,39 @@ package org.jmessenger;
  * Type of a message
  */
 public enum MessageType {
-    TEXT,
-    NAME_REQUEST,
-    PASSWORD_REQUEST,
-    LOGIN_OK,
-    PASSWORD_INCORRECT,
-    DISCONNECT
+    TEXT(Lane.CHAT),
+    NAME_REQUEST(Lane.CONTROL),
+    PASSWORD_REQUEST(Lane.CONTROL),
+    LOGIN_OK(Lane.CONTROL),
+    PASSWORD_INCORRECT(Lane.CONTROL),
+    DISCONNECT(Lane.CONTROL),
+    ATTACHMENT_OFFER(Lane.CONTROL),
+    // chunks and the completion of an upload must stay in one lane to keep their order
+    ATTACHMENT_CHUNK(Lane.CHAT),
+    ATTACHMENT_COMPLETE(Lane.CHAT),
+    // cumulative acknowledgement of client message ids, sent by the server
+    ACK(Lane.CONTROL),
+    // answer of a reconnecting client to NAME_REQUEST, with the user name
+    // and the sequence number up to which it has received all broadcast messages
+    RESUME(Lane.CONTROL),
+    // search request with the query text, and the response with the found messages
+    SEARCH(Lane.CONTROL),
+    SEARCH_RESULT(Lane.CHAT),
+    // roster request with the client's roster version, and the whole roster with its version
+    ROSTER(Lane.CONTROL),
+    // coalesced roster changes with the new version; from a client, its new status as text
+    PRESENCE(Lane.CONTROL);
+
+    private final Lane lane;
+
+    MessageType(Lane lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * @return the lane messages of this type are sent in
+     */
+    public Lane getLane() {
+        return lane;
+    }
 }
@@ -0,0 +1,14 @@
+package org.jmessenger;
+
+/**
+ * Presence status of a user, as shown in the roster.
+ */
+public enum PresenceStatus {
+    ONLINE,
+    AWAY,
+    BUSY,
+    /**
+     * Only used in roster changes, for a user who has disconnected
+     */
+    OFFLINE
+}
@@ -0,0 +1,81 @@
+package org.jmessenger;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which numbers of an increasing sequence (message ids or sequence numbers)
+ * have been received, in order to drop duplicates.
+ * <p>
+ * Only a window of recent numbers is kept, as a bitmap: numbers up to <code>contiguous</code>
+ * are all considered received, and a bit is kept for each number above it.
+ * A gap wider than the window is given up as lost, and a jump far ahead
+ * (e.g. a client restarted with a new id base) restarts the window.
+ * This class is not thread-safe.
+ */
+public class SequenceWindow {
+    private static final int WINDOW_SIZE = 1024;
+
+    private final long[] bits = new long[WINDOW_SIZE / 64];
+    // all numbers up to this one have been received (or given up)
+    private long contiguous;
+    private long highest;
+
+    /**
+     * Create a window in which all numbers up to the given one are already received.
+     * @param contiguous last received number
+     */
+    public SequenceWindow(long contiguous) {
+        this.contiguous = contiguous;
+        this.highest = contiguous;
+    }
+
+    /**
+     * Register a received number.
+     * @param number received number
+     * @return <code>true</code> if the number is new and <code>false</code> if it is a duplicate or too old
+     */
+    public boolean add(long number) {
+        if (number <= contiguous) return false;
+        if (number > highest + WINDOW_SIZE) {
+            // too far ahead to keep the current window: start a new one
+            Arrays.fill(bits, 0);
+            contiguous = number - 1;
+            highest = contiguous;
+        }
+        // give up the oldest missing numbers to make room
+        while (number - contiguous > WINDOW_SIZE) {
+            advance();
+        }
+        if (isSet(number)) return false;
+        set(number, true);
+        if (number > highest) highest = number;
+        while (contiguous < highest && isSet(contiguous + 1)) {
+            advance();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number up to which all numbers have been received
+     */
+    public long getContiguous() {
+        return contiguous;
+    }
+
+    // move the start of the window one number forward
+    private void advance() {
+        contiguous++;
+        set(contiguous, false);
+    }
+
+    private boolean isSet(long number) {
+        int bit = (int) Math.floorMod(number, (long) WINDOW_SIZE);
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(long number, boolean value) {
+        int bit = (int) Math.floorMod(number, (long) WINDOW_SIZE);
+        if (value) bits[bit >>> 6] |= 1L << bit;
+        else bits[bit >>> 6] &= ~(1L << bit);
+    }
+}
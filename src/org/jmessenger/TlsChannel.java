@@ -0,0 +1,320 @@
+package org.jmessenger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A byte channel which encrypts and decrypts all data passing through it,
+ * using an <code>SSLEngine</code> instance.
+ * <p>
+ * The transport is given as a pair of channels, so the same class serves a blocking
+ * <code>Socket</code> (through its streams) and a <code>SocketChannel</code> in non-blocking
+ * mode, registered with a <code>Selector</code>. In non-blocking mode <code>read</code>,
+ * <code>write</code> and <code>handshake</code> return without progress when the transport
+ * is not ready, and the caller retries them when the selector reports readiness.
+ * <p>
+ * One thread may read while another one writes.
+ */
+public class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // time a blocked writer waits for the reader to take the peer's handshake messages
+    private static final long HANDSHAKE_WAIT_MS = 10;
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final SSLEngine engine;
+    // encrypted bytes received from the peer, kept ready for filling
+    private ByteBuffer netIn;
+    // decrypted bytes not yet taken by the application, kept ready for draining
+    private ByteBuffer appIn;
+    // encrypted bytes not yet sent to the peer, kept ready for draining
+    private ByteBuffer netOut;
+    // here we use separate locks for reading and writing, so that a blocked reader does not stop writers;
+    // whenever both are needed, the read lock is taken first
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private volatile boolean handshakeDone = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a TLS channel on top of the given transport.
+     * @param in channel to read encrypted data from
+     * @param out channel to write encrypted data to
+     * @param engine <code>SSLEngine</code> instance, already configured for client or server mode
+     * @throws IOException if the handshake cannot be started
+     */
+    public TlsChannel(ReadableByteChannel in, WritableByteChannel out, SSLEngine engine) throws IOException {
+        this.in = in;
+        this.out = out;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        appIn.flip();
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut.flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * Creates a TLS channel on top of the given socket channel, which may be in either blocking mode.
+     * @param channel connected socket channel
+     * @param engine <code>SSLEngine</code> instance, already configured for client or server mode
+     * @throws IOException if the handshake cannot be started
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this(channel, channel, engine);
+    }
+
+    /**
+     * Advance the TLS handshake as far as the transport allows.
+     * On a blocking transport this method returns only when the handshake is complete.
+     * @return <code>true</code> if the handshake is complete and <code>false</code> otherwise
+     * @throws IOException if the handshake fails or the peer closes the connection
+     */
+    public boolean handshake() throws IOException {
+        if (handshakeDone) return true;
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                while (!handshakeDone) {
+                    SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                    // send a whole flight of handshake messages in one write
+                    if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP && !flushNetOut()) return false;
+                    switch (status) {
+                        case NEED_TASK:
+                            runDelegatedTasks();
+                            break;
+                        case NEED_WRAP:
+                            if (wrap(EMPTY).getStatus() == SSLEngineResult.Status.CLOSED)
+                                throw new SSLException("Connection closed during handshake");
+                            break;
+                        case NEED_UNWRAP:
+                        case NEED_UNWRAP_AGAIN:
+                            int result = unwrap();
+                            if (result < 0) throw new EOFException("Connection closed during handshake");
+                            if (result == 0) return false;
+                            break;
+                        default:
+                            handshakeDone = true;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read decrypted data into the given buffer.
+     * @param dst buffer to read data into
+     * @return number of bytes read, possibly 0 on a non-blocking transport, or -1 at the end of stream
+     * @throws IOException if an I/O or TLS error occurs
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!handshake()) return 0;
+        synchronized (readLock) {
+            while (!appIn.hasRemaining()) {
+                int result = unwrap();
+                if (result <= 0) return result;
+            }
+            int n = Math.min(appIn.remaining(), dst.remaining());
+            ByteBuffer chunk = appIn.duplicate();
+            chunk.limit(chunk.position() + n);
+            dst.put(chunk);
+            appIn.position(appIn.position() + n);
+            return n;
+        }
+    }
+
+    /**
+     * Encrypt data from the given buffer and send it.
+     * On a non-blocking transport some encrypted data may remain pending; it is sent by subsequent
+     * calls to <code>write</code> or <code>flush</code>.
+     * On a blocking transport at least one byte is taken, as required by stream adapters,
+     * even if the engine first has to send post-handshake messages, e.g. a key update.
+     * @param src buffer containing data to be sent
+     * @return number of bytes taken from the buffer, more than 0 on a blocking transport if any remain
+     * @throws IOException if an I/O or TLS error occurs
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        if (!handshake()) return 0;
+        synchronized (writeLock) {
+            if (!flushNetOut()) return 0;
+            int consumed = 0;
+            while (src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new ClosedChannelException();
+                consumed += result.bytesConsumed();
+                if (!flushNetOut()) break;
+                if (result.bytesConsumed() > 0) continue;
+                // nothing taken: the engine has sent a post-handshake message, or needs a task or the peer's data
+                if (consumed > 0 || !isBlocking()) break;
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                } else if (result.bytesProduced() == 0) {
+                    try {
+                        // the reader takes the peer's messages meanwhile
+                        writeLock.wait(HANDSHAKE_WAIT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the handshake");
+                    }
+                }
+            }
+            return consumed;
+        }
+    }
+
+    /**
+     * Send encrypted data left pending by previous calls.
+     * @return <code>true</code> if nothing is left pending
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean flush() throws IOException {
+        synchronized (writeLock) {
+            return flushNetOut();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Send a TLS close notification (if the transport allows) and close the transport.
+     * @throws IOException if the transport fails to close
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (closed) return;
+            closed = true;
+            engine.closeOutbound();
+            try {
+                while (!engine.isOutboundDone()) {
+                    if (wrap(EMPTY).bytesProduced() == 0 || !flushNetOut()) break;
+                }
+                flushNetOut();
+            } catch (IOException e) {
+                // the peer may be gone already, nothing to notify
+            }
+        }
+        in.close();
+        out.close();
+    }
+
+    /**
+     * Unwrap one TLS record, reading from the transport as needed.
+     * The read lock must be held by the caller.
+     * @return 1 if a record was processed, 0 if the transport has no data, -1 at the end of stream
+     */
+    private int unwrap() throws IOException {
+        while (true) {
+            SSLEngineResult result;
+            netIn.flip();
+            appIn.compact();
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+                appIn.flip();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = enlargeForDraining(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining())
+                        netIn = enlargeForFilling(netIn, engine.getSession().getPacketBufferSize());
+                    int n = in.read(netIn);
+                    if (n < 0) {
+                        engine.closeInbound();
+                        return -1;
+                    }
+                    if (n == 0) return 0;
+                    continue;
+                case CLOSED:
+                    return -1;
+                default:
+                    break;
+            }
+            // handle post-handshake messages, e.g. session tickets and key updates;
+            // an answer, e.g. our own key update, is sent by the next write, ahead of its data:
+            // waiting for the write lock here could deadlock with a writer blocked until the peer reads
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runDelegatedTasks();
+            return 1;
+        }
+    }
+
+    /**
+     * Wrap data from the given buffer into <code>netOut</code>.
+     * The write lock must be held by the caller.
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        netOut.compact();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.wrap(src, netOut);
+                if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) return result;
+                netOut = enlargeForFilling(netOut, engine.getSession().getPacketBufferSize());
+            }
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    /**
+     * Write pending encrypted data to the transport.
+     * The write lock must be held by the caller.
+     * @return <code>true</code> if nothing is left pending
+     */
+    private boolean flushNetOut() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (out.write(netOut) == 0) return false;
+        }
+        return true;
+    }
+
+    // whether writes to the transport wait until they are done
+    private boolean isBlocking() {
+        return !(out instanceof SelectableChannel) || ((SelectableChannel) out).isBlocking();
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    // enlarge a buffer which is ready for filling, keeping the data already put into it
+    private static ByteBuffer enlargeForFilling(ByteBuffer buffer, int minFree) {
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + minFree));
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+
+    // enlarge a buffer which is ready for draining, keeping the data not yet taken from it
+    private static ByteBuffer enlargeForDraining(ByteBuffer buffer, int minFree) {
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.remaining() + minFree));
+        enlarged.put(buffer);
+        enlarged.flip();
+        return enlarged;
+    }
+}
@@ -0,0 +1,119 @@
+package org.jmessenger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Properties;
+
+/**
+ * TLS configuration shared by all connections of a client or a server.
+ * <p>
+ * A single instance must be kept for the whole life of the application:
+ * it holds the TLS session cache, so that a client reconnecting to the server
+ * resumes its previous session instead of performing a full key exchange.
+ */
+public class TlsContext {
+    private final SSLContext sslContext;
+    private final String[] protocols;
+
+    /**
+     * Create a TLS context from the settings found in "server.properties".
+     * Keys and certificates are loaded from the keystore files named by <code>TLS_KEYSTORE</code>
+     * and <code>TLS_TRUSTSTORE</code>; if no truststore is given, the default JDK one is used.
+     * A server cannot accept TLS connections without a key, so it must have a keystore.
+     * @param properties application settings
+     * @param server <code>true</code> for the server side, <code>false</code> for a client
+     * @return a <code>TlsContext</code> instance or null if TLS is not enabled by <code>TLS_ENABLED</code>
+     * @throws IOException if a keystore file cannot be read
+     * @throws GeneralSecurityException if keys or certificates cannot be loaded, or a server has no keystore
+     */
+    public static TlsContext fromProperties(Properties properties, boolean server)
+            throws IOException, GeneralSecurityException {
+        if (!Boolean.parseBoolean(properties.getProperty("TLS_ENABLED", "false").trim())) return null;
+        KeyStore keyStore = loadKeyStore(properties.getProperty("TLS_KEYSTORE"), properties.getProperty("TLS_KEYSTORE_PASSWORD"));
+        if (server && keyStore == null)
+            throw new GeneralSecurityException("TLS is enabled, but no server key is given in TLS_KEYSTORE");
+        // session tickets let the server resume sessions without keeping them in its cache;
+        // JSSE reads these settings once, so they must be set before the first SSLContext is created
+        String tickets = properties.getProperty("TLS_SESSION_TICKETS", "true").trim();
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", tickets);
+        System.setProperty("jdk.tls.client.enableSessionTicketExtension", tickets);
+        return new TlsContext(
+                keyStore,
+                properties.getProperty("TLS_KEYSTORE_PASSWORD"),
+                loadKeyStore(properties.getProperty("TLS_TRUSTSTORE"), properties.getProperty("TLS_TRUSTSTORE_PASSWORD")),
+                properties.getProperty("TLS_PROTOCOLS", "TLSv1.3").trim().split("\\s*,\\s*"),
+                Integer.parseInt(properties.getProperty("TLS_SESSION_CACHE_SIZE", "10000").trim()),
+                Integer.parseInt(properties.getProperty("TLS_SESSION_TIMEOUT", "86400").trim())
+        );
+    }
+
+    /**
+     * Creates a TLS context.
+     * @param keyStore keystore containing the private key and certificate of this side, may be null for clients
+     * @param keyPassword password of the private key
+     * @param trustStore keystore containing trusted certificates, or null to use the default JDK truststore
+     * @param protocols enabled protocols, e.g. "TLSv1.3"
+     * @param sessionCacheSize maximum number of cached sessions, 0 means no limit
+     * @param sessionTimeout session lifetime in seconds
+     * @throws GeneralSecurityException if keys or certificates cannot be loaded
+     */
+    public TlsContext(KeyStore keyStore, String keyPassword, KeyStore trustStore,
+                      String[] protocols, int sessionCacheSize, int sessionTimeout) throws GeneralSecurityException {
+        this.protocols = protocols;
+        KeyManagerFactory kmf = null;
+        if (keyStore != null) {
+            kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, keyPassword == null ? null : keyPassword.toCharArray());
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf == null ? null : kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        sslContext.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+        sslContext.getServerSessionContext().setSessionTimeout(sessionTimeout);
+        sslContext.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+        sslContext.getClientSessionContext().setSessionTimeout(sessionTimeout);
+    }
+
+    /**
+     * Create an engine for a connection accepted by the server.
+     * @return <code>SSLEngine</code> instance in server mode
+     */
+    public SSLEngine createServerEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(protocols);
+        return engine;
+    }
+
+    /**
+     * Create an engine for a connection to the given server.
+     * The server address is used both to verify the server certificate
+     * and to find a cached session to resume.
+     * @param serverAddress server host name
+     * @param serverPort server port
+     * @return <code>SSLEngine</code> instance in client mode
+     */
+    public SSLEngine createClientEngine(String serverAddress, int serverPort) {
+        SSLEngine engine = sslContext.createSSLEngine(serverAddress, serverPort);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(protocols);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    // load a keystore of any supported type (PKCS12, JKS), or return null if no file is given
+    private static KeyStore loadKeyStore(String fileName, String password) throws IOException, GeneralSecurityException {
+        if (fileName == null || fileName.trim().equals("")) return null;
+        return KeyStore.getInstance(new File(fileName.trim()), password == null ? null : password.toCharArray());
+    }
+}
@@ -0,0 +1,94 @@
+package org.jmessenger;
+
+import javax.net.ssl.SSLEngine;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+
+/**
+ * Measures full and resumed TLS handshakes per second over the loopback interface,
+ * using the same <code>Connection</code> and <code>TlsContext</code> classes as the client and the server.
+ * <p>
+ * A full handshake is forced by giving each connection a new client context, with an empty session cache;
+ * resumed handshakes share one client context, which keeps the session ticket of the previous connection.
+ * <p>
+ * Usage: <code>java org.jmessenger.TlsHandshakeBenchmark &lt;keystore&gt; &lt;password&gt; [count] [protocols]</code>,
+ * where the keystore holds a key and a certificate for "localhost", e.g. created with
+ * <code>keytool -genkeypair -keyalg EC -alias server -dname CN=localhost -ext SAN=dns:localhost
+ * -keystore bench.p12 -storepass secret</code>.
+ */
+public class TlsHandshakeBenchmark {
+    private static final int WARM_UP_COUNT = 200;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: TlsHandshakeBenchmark <keystore> <password> [count] [protocols]");
+            return;
+        }
+        KeyStore keyStore = KeyStore.getInstance(new File(args[0]), args[1].toCharArray());
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        String[] protocols = (args.length > 3 ? args[3] : "TLSv1.3").split("\\s*,\\s*");
+        // as in TlsContext.fromProperties, these must be set before the first SSLContext is created
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+        TlsContext serverContext = new TlsContext(keyStore, args[1], null, protocols, 10000, 86400);
+
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        int port = serverSocket.getLocalPort();
+        Thread server = new Thread(() -> serve(serverSocket, serverContext), "Benchmark server");
+        server.setDaemon(true);
+        server.start();
+
+        // the client contexts are created in advance, so that only handshakes are measured
+        TlsContext[] freshContexts = new TlsContext[count];
+        for (int i = 0; i < count; i++) {
+            freshContexts[i] = new TlsContext(null, null, keyStore, protocols, 10000, 86400);
+        }
+        TlsContext sharedContext = new TlsContext(null, null, keyStore, protocols, 10000, 86400);
+        // warm up the JIT with both kinds of handshakes
+        for (int i = 0; i < WARM_UP_COUNT; i++) {
+            connect(sharedContext, port);
+            connect(new TlsContext(null, null, keyStore, protocols, 10000, 86400), port);
+        }
+
+        long start = System.nanoTime();
+        for (TlsContext context : freshContexts) {
+            connect(context, port);
+        }
+        long fullTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            connect(sharedContext, port);
+        }
+        long resumedTime = System.nanoTime() - start;
+        System.out.printf("full:    %.0f handshakes/s%n", count / (fullTime / 1e9));
+        System.out.printf("resumed: %.0f handshakes/s%n", count / (resumedTime / 1e9));
+        serverSocket.close();
+    }
+
+    // open a connection, which performs the handshake, and close it
+    private static void connect(TlsContext context, int port) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        SSLEngine engine = context.createClientEngine("localhost", port);
+        Connection connection = new Connection(socket, engine);
+        connection.sendMessage(new Message(MessageType.DISCONNECT));
+        connection.close();
+    }
+
+    // accept connections one by one, wait for the client's message and close
+    private static void serve(ServerSocket serverSocket, TlsContext context) {
+        while (true) {
+            try {
+                Connection connection = new Connection(serverSocket.accept(), context.createServerEngine());
+                connection.receiveMessage();
+                connection.close();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) return;
+                e.printStackTrace( );
+            }
+        }
+    }
+}
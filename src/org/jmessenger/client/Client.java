@@ -2,20 +2,76 @@ package org.jmessenger.client;
 
 import org.jmessenger.*;
 
+import javax.net.ssl.SSLEngine;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Entrypoint class for JMessenger users.
  */
 class Client {
-    private Connection connection;
+    // maximum number of sent messages waiting for acknowledgement
+    private static final int SEND_WINDOW = 64;
+    private static final long RECONNECT_DELAY_MS = 2000;
+    private volatile Connection connection;
+    // set when the user disconnects, so that a lost connection is not restored
+    private volatile boolean disconnected = false;
+    // TLS settings and session cache, kept for all reconnections; null if TLS is disabled
+    private TlsContext tlsContext;
     private View view;
     private String userName;
     private String password;
+    private String serverAddress;
+    private int serverPort;
+    // port the server accepts attachment downloads on
+    private int filePort;
+    private int chunkSize;
+    // size of socket send and receive buffers, 0 for system default
+    private int socketBufferSize;
+    private Path downloadDirectory;
+    // token for attachment downloads, given by the server at each login
+    private volatile String downloadToken;
+    // Files being uploaded by this client, by transfer id
+    private final Map<Long, File> uploads = new ConcurrentHashMap<>();
+    // Names of attachments announced by the server, by transfer id
+    private final Map<Long, String> attachments = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    // Messages sent but not yet acknowledged by the server, by message id, in the order of sending
+    private final Map<Long, Message> unacknowledged = new LinkedHashMap<>();
+    // ids grow from the start time, so that the ids of a restarted client stay above the old ones
+    private long nextMessageId = System.currentTimeMillis() << 16;
+    // Sequence numbers of received messages, to display each message once; created at first login
+    private SequenceWindow receivedSequences;
+    // Online users and their status, with the version of the roster; used by the receiving thread only
+    private final Map<String, PresenceStatus> roster = new HashMap<>();
+    private long rosterVersion = 0;
+    // own status, restored after reconnecting
+    private volatile PresenceStatus status = PresenceStatus.ONLINE;
 
     public static void main(String[] args) {
         // load server configuration from file
@@ -29,6 +85,17 @@ class Client {
         }
         // create a client
         Client client = new Client();
+        try {
+            client.tlsContext = TlsContext.fromProperties(properties, false);
+        } catch (Exception e) {
+            System.out.println("Failed to load TLS settings.");
+            e.printStackTrace();
+            return;
+        }
+        client.filePort = Integer.parseInt(properties.getProperty("FILE_PORT").trim());
+        client.socketBufferSize = Integer.parseInt(properties.getProperty("SOCKET_BUFFER_SIZE", "0").trim());
+        client.chunkSize = Integer.parseInt(properties.getProperty("ATTACHMENT_CHUNK_SIZE", "65536").trim());
+        client.downloadDirectory = Paths.get(properties.getProperty("DOWNLOAD_DIR", "downloads").trim());
         // open GUI
         client.view = View.getInstance("JMessenger",client);
         if (client.view == null) {
@@ -68,13 +135,135 @@ class Client {
         }
         // listen to incoming messages
         while (true) {
+            Message message;
             try {
-                Message message = client.connection.receiveMessage();
-                if (message.getType() == MessageType.TEXT) {
-                    client.view.displayMessage(message.getText());
-                }
+                message = client.connection.receiveMessage();
             } catch (Exception e) {
+                if (!client.reconnect()) return;
+                continue;
+            }
+            client.processMessage(message);
+        }
+    }
+
+    /**
+     * Process a message received from the server.
+     * A broadcast message received again after reconnecting is dropped by its sequence number.
+     * @param message received message
+     */
+    private void processMessage(Message message) {
+        boolean broadcast = message.getType() == MessageType.TEXT || message.getType() == MessageType.ATTACHMENT_COMPLETE;
+        if (broadcast && message.getSequence() != 0 && !receivedSequences.add(message.getSequence())) return;
+        if (message.getType() == MessageType.TEXT) {
+            view.displayMessage(message.getText());
+        } else if (message.getType() == MessageType.ACK) {
+            acknowledge(message.getSequence());
+        } else if (message.getType() == MessageType.ATTACHMENT_OFFER) {
+            startUpload(message);
+        } else if (message.getType() == MessageType.ATTACHMENT_COMPLETE) {
+            attachments.put(message.getTransferId(), message.getText());
+            view.displayMessage(describeAttachment(message));
+        } else if (message.getType() == MessageType.SEARCH_RESULT) {
+            displaySearchResult(message);
+        } else if (message.getType() == MessageType.ROSTER) {
+            roster.clear();
+            roster.putAll(message.getRoster());
+            rosterVersion = message.getSequence();
+            view.updateRoster(roster);
+        } else if (message.getType() == MessageType.PRESENCE) {
+            for (Map.Entry<String, PresenceStatus> change : message.getRoster().entrySet()) {
+                if (change.getValue() == PresenceStatus.OFFLINE) roster.remove(change.getKey());
+                else roster.put(change.getKey(), change.getValue());
+            }
+            rosterVersion = message.getSequence();
+            view.updateRoster(roster);
+        }
+    }
+
+    private static String describeAttachment(Message notice) {
+        // the server no longer keeps the attachment of an old notice found by a search
+        if (notice.getOffset() < 0) return notice.getSender() + " shared \"" + notice.getText() + "\", no longer available\n";
+        return notice.getSender() + " shared \"" + notice.getText() + "\" (" + notice.getOffset()
+                + " bytes), type \"/get " + Long.toUnsignedString(notice.getTransferId()) + "\" to download\n";
+    }
+
+    /**
+     * Display the messages found by a search, from the oldest one.
+     * @param result search result from the server; a result without messages carries an error text
+     */
+    private void displaySearchResult(Message result) {
+        if (result.getResults() == null) {
+            view.displayMessage("\nSearch failed: " + result.getText() + "\n");
+            return;
+        }
+        List<Message> found = result.getResults();
+        StringBuilder text = new StringBuilder();
+        text.append("\nSearch \"").append(result.getText()).append("\": ")
+                .append(found.size()).append(found.size() == 1 ? " message\n" : " messages\n");
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (int i = found.size() - 1; i >= 0; i--) {
+            Message message = found.get(i);
+            text.append('[').append(dateFormat.format(new Date(message.getTimestamp()))).append("] ");
+            if (message.getType() == MessageType.ATTACHMENT_COMPLETE) {
+                attachments.put(message.getTransferId(), message.getText());
+                text.append(describeAttachment(message));
+            } else {
+                text.append(message.getText());
+                if (!message.getText().endsWith("\n")) text.append('\n');
+            }
+        }
+        view.displayMessage(text.toString());
+    }
+
+    /**
+     * Restore a lost connection and resume the session: request the messages broadcast meanwhile
+     * and resend the messages not acknowledged by the server. The server drops those it already has.
+     * @return <code>true</code> if reconnected, <code>false</code> if the user has disconnected or the login is refused
+     */
+    private boolean reconnect() {
+        if (disconnected) return false;
+        view.displayMessage("\nConnection lost. Reconnecting...\n");
+        while (!disconnected) {
+            try {
+                Connection lost = connection;
+                if (lost != null) lost.close();
+                if (!connectServer(serverAddress, serverPort)) {
+                    view.popupError("Password incorrect.");
+                    return false;
+                }
+                // copied under the lock and sent without it, as sending may block until the server reads;
+                // a message stored after the copy is sent by its sender on the new connection
+                List<Message> resent;
+                synchronized (unacknowledged) {
+                    resent = new ArrayList<>(unacknowledged.values());
+                }
+                for (Message message : resent) {
+                    connection.sendMessage(message);
+                }
+                view.displayMessage("Reconnected.\n");
+                return true;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException ex) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget the sent messages acknowledged by the server.
+     * @param messageId id up to which all messages are acknowledged
+     */
+    private void acknowledge(long messageId) {
+        synchronized (unacknowledged) {
+            Iterator<Long> ids = unacknowledged.keySet().iterator();
+            while (ids.hasNext() && ids.next() <= messageId) {
+                ids.remove();
             }
+            unacknowledged.notifyAll();
         }
     }
 
@@ -83,44 +272,299 @@ class Client {
      * @throws IOException if connection fails
      */
     private boolean connectServer(String serverAddress, int serverPort) throws IOException {
-        Socket socket = new Socket(serverAddress, serverPort);
-        connection = new Connection(socket);
-        // send username
-        while (true) {
-            Message message = connection.receiveMessage();
-            if (message.getType() != MessageType.NAME_REQUEST) continue;
-            connection.sendMessage(new Message(MessageType.TEXT, userName));
-            break;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        Socket socket = new Socket();
+        // buffer sizes must be set before connecting
+        if (socketBufferSize > 0) {
+            socket.setSendBufferSize(socketBufferSize);
+            socket.setReceiveBufferSize(socketBufferSize);
         }
-        // send password
+        socket.connect(new InetSocketAddress(serverAddress, serverPort));
+        SSLEngine engine = tlsContext == null ? null : tlsContext.createClientEngine(serverAddress, serverPort);
+        connection = new Connection(socket, engine);
+        // answer the server's requests until it accepts or refuses the login;
+        // the name may be requested again, e.g. if the server has not taken the previous one
+        Message reply;
         while (true) {
-            if (connection.receiveMessage().getType() != MessageType.PASSWORD_REQUEST) continue;
-            connection.sendMessage(new Message(MessageType.TEXT, password));
-            break;
+            reply = connection.receiveMessage();
+            if (reply.getType() == MessageType.NAME_REQUEST) {
+                if (receivedSequences == null) {
+                    connection.sendMessage(new Message(MessageType.TEXT, userName));
+                } else {
+                    // resume the session: the server sends the missed messages right after LOGIN_OK
+                    Message resume = new Message(MessageType.RESUME, userName);
+                    resume.setSequence(receivedSequences.getContiguous());
+                    connection.sendMessage(resume);
+                }
+            } else if (reply.getType() == MessageType.PASSWORD_REQUEST) {
+                connection.sendMessage(new Message(MessageType.TEXT, password));
+            } else if (reply.getType() == MessageType.LOGIN_OK || reply.getType() == MessageType.PASSWORD_INCORRECT) {
+                break;
+            }
+        }
+        if (reply.getType() == MessageType.LOGIN_OK) {
+            downloadToken = reply.getText();
+            // messages follow in order from the sequence number of LOGIN_OK: at first login, messages broadcast
+            // before it are not expected, and after reconnecting, those up to it are no longer kept by the server
+            if (receivedSequences == null || reply.getSequence() > receivedSequences.getContiguous()) {
+                if (receivedSequences != null) view.displayMessage("\nSome messages sent while you were away are no longer available.\n");
+                receivedSequences = new SequenceWindow(reply.getSequence());
+            }
+            // get the roster, or only its changes if the server still has them
+            Message rosterRequest = new Message(MessageType.ROSTER);
+            rosterRequest.setSequence(rosterVersion);
+            connection.sendMessage(rosterRequest);
+            if (status != PresenceStatus.ONLINE) connection.sendMessage(new Message(MessageType.PRESENCE, status.name()));
+            return true;
         }
-        return connection.receiveMessage().getType() == MessageType.LOGIN_OK;
+        connection.close();
+        return false;
     }
 
     /**
      * Send a message to the server.
+     * The message is kept until the server acknowledges it, and resent if the connection is restored.
+     * This method blocks while <code>SEND_WINDOW</code> messages are waiting for acknowledgement.
+     * The text "/get &lt;id&gt;" is not sent, but starts downloading the attachment with the given id,
+     * the text "/search &lt;query&gt;" searches the messages kept by the server,
+     * and the text "/status online|away|busy" changes the user's status shown to other users.
      * @param text text to be sent
      */
     public void sendMessage(String text) {
+        if (text.startsWith("/status ")) {
+            try {
+                PresenceStatus newStatus = PresenceStatus.valueOf(text.substring(8).trim().toUpperCase(Locale.ROOT));
+                if (newStatus == PresenceStatus.OFFLINE) throw new IllegalArgumentException();
+                status = newStatus;
+                connection.sendMessage(new Message(MessageType.PRESENCE, newStatus.name()));
+            } catch (IllegalArgumentException e) {
+                view.displayMessage("Incorrect status, use online, away or busy.\n");
+            } catch (IOException e) {
+                view.displayMessage("\nConnection lost, the status will be sent after reconnecting.\n");
+            }
+            return;
+        }
+        if (text.startsWith("/search ")) {
+            try {
+                connection.sendMessage(new Message(MessageType.SEARCH, text.substring(8).trim()));
+            } catch (IOException e) {
+                view.displayMessage("\nError occurred while searching. Try again.\n");
+            }
+            return;
+        }
+        if (text.startsWith("/get ")) {
+            try {
+                long transferId = Long.parseUnsignedLong(text.substring(5).trim());
+                Thread downloader = new Thread(() -> downloadFile(transferId));
+                downloader.setDaemon(true);
+                downloader.start();
+            } catch (NumberFormatException e) {
+                view.displayMessage("Incorrect attachment id.\n");
+            }
+            return;
+        }
+        Message message = new Message(MessageType.TEXT, text);
+        // the message is stored before it is sent, so that a reconnection cannot miss it,
+        // but sent outside the lock, so that a blocked send does not hold up acknowledgements;
+        // a message sent twice this way is dropped by the server as a duplicate
+        synchronized (unacknowledged) {
+            try {
+                while (unacknowledged.size() >= SEND_WINDOW) {
+                    unacknowledged.wait();
+                }
+            } catch (InterruptedException e) {
+                view.displayMessage("\nError occurred while sending the message. Try again.\n");
+                return;
+            }
+            message.setMessageId(nextMessageId++);
+            unacknowledged.put(message.getMessageId(), message);
+        }
+        try {
+            connection.sendMessage(message);
+        } catch (IOException e) {
+            view.displayMessage("\nConnection lost, the message will be sent after reconnecting.\n");
+        }
+    }
+
+    /**
+     * Offer a file to the server as an attachment.
+     * The upload starts when the server accepts the offer.
+     * Offering the same file again after a failure resumes its upload.
+     * @param file file to be sent
+     */
+    public void sendFile(File file) {
+        long transferId = 0;
+        for (Map.Entry<Long, File> upload : uploads.entrySet()) {
+            if (upload.getValue().equals(file)) transferId = upload.getKey();
+        }
+        if (transferId == 0) {
+            transferId = random.nextLong();
+            uploads.put(transferId, file);
+        }
+        Message offer = new Message(MessageType.ATTACHMENT_OFFER, transferId, file.length(), null);
+        offer.setText(file.getName());
         try {
-            connection.sendMessage(new Message(MessageType.TEXT, text));
+            connection.sendMessage(offer);
+        } catch (IOException e) {
+            e.printStackTrace( );
+            view.displayMessage("\nError occurred while sending the file. Try again.\n");
+        }
+    }
+
+    /**
+     * Process the server reply to an attachment offer: start sending the file, or report the rejection.
+     * @param reply <code>ATTACHMENT_OFFER</code> message from the server
+     */
+    private void startUpload(Message reply) {
+        File file = uploads.get(reply.getTransferId());
+        if (file == null) return;
+        if (reply.getOffset() < 0) {
+            uploads.remove(reply.getTransferId());
+            view.displayMessage("File \"" + file.getName() + "\" was not sent: " + reply.getText() + "\n");
+            return;
+        }
+        Thread uploader = new Thread(() -> uploadFile(reply.getTransferId(), file, reply.getOffset()));
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    /**
+     * Send a file to the server in chunks, starting from the given offset.
+     * Memory use is bounded by the capacity of the connection's chat lane.
+     */
+    private void uploadFile(long transferId, File file, long offset) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int percent = reportProgress("Sending", file.getName(), offset, size, -1);
+            while (offset < size) {
+                // a queued message must not change, so each chunk gets its own array
+                byte[] data = new byte[(int) Math.min(chunkSize, size - offset)];
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0)
+                        throw new IOException("File \"" + file.getName() + "\" has changed.");
+                }
+                connection.sendMessage(new Message(MessageType.ATTACHMENT_CHUNK, transferId, offset, data));
+                offset += data.length;
+                percent = reportProgress("Sending", file.getName(), offset, size, percent);
+            }
+            connection.sendMessage(new Message(MessageType.ATTACHMENT_COMPLETE, transferId, size, null));
+            uploads.remove(transferId);
         } catch (IOException e) {
             e.printStackTrace( );
-            view.displayMessage("\nError occurred while sending the message. Try again.\n");
+            view.displayMessage("\nError occurred while sending the file. Send it again to resume.\n");
         }
     }
 
+    /**
+     * Download an attachment into the download directory.
+     * The data goes to the file "&lt;transfer id&gt;.part" first, so a partial download is resumed from its end
+     * only by the same attachment; the complete file is renamed to the attachment name,
+     * without replacing an existing file of the same name.
+     */
+    private void downloadFile(long transferId) {
+        String fileName = attachments.get(transferId);
+        if (fileName == null) {
+            view.displayMessage("Unknown attachment id.\n");
+            return;
+        }
+        Path partial = downloadDirectory.resolve(Long.toUnsignedString(transferId) + ".part");
+        try {
+            Files.createDirectories(downloadDirectory);
+            try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, filePort));
+                 FileChannel file = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ByteChannel channel = socketChannel;
+                if (tlsContext != null) {
+                    TlsChannel tlsChannel = new TlsChannel(socketChannel, tlsContext.createClientEngine(serverAddress, filePort));
+                    tlsChannel.handshake();
+                    channel = tlsChannel;
+                }
+                // request the attachment from the end of the partially downloaded file
+                long offset = file.size();
+                byte[] token = downloadToken.getBytes(StandardCharsets.US_ASCII);
+                ByteBuffer request = ByteBuffer.allocate(16 + token.length).putLong(transferId).putLong(offset).put(token);
+                request.flip();
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+                ByteBuffer response = ByteBuffer.allocate(8);
+                while (response.hasRemaining()) {
+                    if (channel.read(response) < 0) throw new IOException("Connection closed by the server.");
+                }
+                long size = response.getLong(0);
+                if (size < 0) {
+                    view.displayMessage("Attachment \"" + fileName + "\" is not available.\n");
+                    return;
+                }
+                int percent = reportProgress("Receiving", fileName, offset, size, -1);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+                while (offset < size) {
+                    long n;
+                    if (channel == socketChannel) {
+                        // file data goes from the socket to the page cache without entering the heap
+                        n = file.transferFrom(socketChannel, offset, size - offset);
+                    } else {
+                        buffer.clear();
+                        n = channel.read(buffer);
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            file.write(buffer, offset + buffer.position());
+                        }
+                    }
+                    if (n <= 0) throw new IOException("Connection closed by the server.");
+                    offset += n;
+                    percent = reportProgress("Receiving", fileName, offset, size, percent);
+                }
+            }
+            Path target = saveDownload(partial, fileName);
+            view.displayMessage("Saved \"" + fileName + "\" to " + target.toAbsolutePath() + "\n");
+        } catch (IOException e) {
+            e.printStackTrace( );
+            view.displayMessage("\nError occurred while receiving the file. Type the command again to resume.\n");
+        }
+    }
+
+    /**
+     * Give a complete download the attachment name, adding a number to it if the name is taken.
+     * @return path of the saved file
+     */
+    private Path saveDownload(Path partial, String fileName) throws IOException {
+        // keep only the file name, never write outside the download directory
+        String name = Paths.get(fileName).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; ; i++) {
+            Path target = downloadDirectory.resolve(name);
+            try {
+                return Files.move(partial, target);
+            } catch (FileAlreadyExistsException e) {
+                name = base + " (" + i + ")" + extension;
+            }
+        }
+    }
+
+    /**
+     * Display progress of a transfer, at most once per 10 percent.
+     * @return percentage displayed last
+     */
+    private int reportProgress(String action, String fileName, long done, long size, int lastPercent) {
+        int percent = size == 0 ? 100 : (int) (done * 100 / size);
+        if (lastPercent >= 0 && percent / 10 == lastPercent / 10) return lastPercent;
+        view.displayMessage(action + " \"" + fileName + "\": " + percent + "%\n");
+        return percent;
+    }
+
     /**
      * Disconnect from server.
      */
     public void disconnect() {
+        disconnected = true;
         if (connection == null) return;
         try {
-            connection.sendMessage(new Message(MessageType.DISCONNECT));
+            // sent last, so that it does not overtake the user's messages queued in the chat lane
+            connection.close(new Message(MessageType.DISCONNECT));
         } catch (IOException e) {
             e.printStackTrace( );
         }
@@ -1,21 +1,32 @@
 package org.jmessenger.client;
 
+import org.jmessenger.PresenceStatus;
+
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Class responsible for GUI of the client side.
  */
 public class View extends JFrame {
-    private static final int FRAME_WIDTH = 500;
+    private static final int FRAME_WIDTH = 640;
     private static final int FRAME_HEIGHT = 300;
+    // width of the roster panel on the right, the chat takes the rest
+    private static final int ROSTER_WIDTH = 140;
+    private static final int CHAT_WIDTH = FRAME_WIDTH - ROSTER_WIDTH;
     private JTextArea textArea = new JTextArea(  );
+    private DefaultListModel<String> rosterModel = new DefaultListModel<>(  );
     private JTextField textField = new JTextField(  );
     private JButton sendButton = new JButton("Send");
+    private JButton attachButton = new JButton("File");
     private Client client;
 
     /**
@@ -59,7 +70,9 @@ public class View extends JFrame {
         setMinimumSize(new Dimension(FRAME_WIDTH, FRAME_HEIGHT));
         setResizable(false);
         addMessagesArea( );
+        addRosterPanel( );
         addInputTextField( );
+        addAttachButton( );
         addSendButton( );
         setVisible(true);
         textField.grabFocus();
@@ -74,7 +87,21 @@ public class View extends JFrame {
         JScrollPane scrollPane = new JScrollPane(textArea,
                 JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
-        scrollPane.setBounds(5,5,FRAME_WIDTH - 10,FRAME_HEIGHT - 70);
+        scrollPane.setBounds(5,5,CHAT_WIDTH - 10,FRAME_HEIGHT - 70);
+        add(scrollPane);
+    }
+
+    /**
+     * Create roster panel, listing online users.
+     */
+    private void addRosterPanel() {
+        JList<String> rosterList = new JList<>(rosterModel);
+        rosterList.setFocusable(false);
+        JScrollPane scrollPane = new JScrollPane(rosterList,
+                JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+                ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+        scrollPane.setBorder(BorderFactory.createTitledBorder("Online"));
+        scrollPane.setBounds(CHAT_WIDTH,5,ROSTER_WIDTH - 5,FRAME_HEIGHT - 35);
         add(scrollPane);
     }
 
@@ -82,7 +109,7 @@ public class View extends JFrame {
      * Create "send" button.
      */
     private void addSendButton() {
-        sendButton.setBounds(FRAME_WIDTH - 100,FRAME_HEIGHT - 60,95, 29);
+        sendButton.setBounds(CHAT_WIDTH - 100,FRAME_HEIGHT - 60,95, 29);
         sendButton.setEnabled(false);
         sendButton.addActionListener(e -> {
             String text = textField.getText() + "\n";
@@ -93,11 +120,25 @@ public class View extends JFrame {
         add(sendButton);
     }
 
+    /**
+     * Create "file" button, which sends a file chosen by the user as an attachment.
+     */
+    private void addAttachButton() {
+        attachButton.setBounds(CHAT_WIDTH - 170,FRAME_HEIGHT - 60,65, 29);
+        attachButton.addActionListener(e -> {
+            JFileChooser fileChooser = new JFileChooser();
+            if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION)
+                sendFile(fileChooser.getSelectedFile());
+            textField.grabFocus();
+        });
+        add(attachButton);
+    }
+
     /**
      * Setup an input text box.
      */
     private void addInputTextField() {
-        textField.setBounds(5,FRAME_HEIGHT - 60,FRAME_WIDTH - 105,30);
+        textField.setBounds(5,FRAME_HEIGHT - 60,CHAT_WIDTH - 175,30);
         textField.addKeyListener(new KeyAdapter( ) {
             @Override
             public void keyPressed(KeyEvent e) {
@@ -136,6 +177,22 @@ public class View extends JFrame {
         worker.execute();
     }
 
+    /**
+     * Induce the associated client to send a file.
+     * This must be done on a thread other than the EDT, use one of the Swing Worker threads.
+     * @param file file to be sent
+     */
+    private void sendFile(File file) {
+        SwingWorker<Void,Void> worker = new SwingWorker<>() {
+            @Override
+            protected Void doInBackground() {
+                client.sendFile(file);
+                return null;
+            }
+        };
+        worker.execute();
+    }
+
     /**
      * Request user name from the user.
      * @return user name entered
@@ -176,6 +233,21 @@ public class View extends JFrame {
         runOnEDT(() -> textArea.append(text));
     }
 
+    /**
+     * Display the online users, sorted by name, with their status unless they are just online.
+     * @param roster online users and their status
+     */
+    public void updateRoster(Map<String, PresenceStatus> roster) {
+        Map<String, PresenceStatus> sorted = new TreeMap<>(roster);
+        runOnEDT(() -> {
+            rosterModel.clear();
+            for (Map.Entry<String, PresenceStatus> user : sorted.entrySet()) {
+                rosterModel.addElement(user.getValue() == PresenceStatus.ONLINE ? user.getKey()
+                        : user.getKey() + " (" + user.getValue().name().toLowerCase(Locale.ROOT) + ")");
+            }
+        });
+    }
+
     /**
      * Execute a runnable task on the Event Dispatching Thread.
      * All Swing operations must work on the EDT.
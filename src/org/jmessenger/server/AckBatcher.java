@@ -0,0 +1,71 @@
+package org.jmessenger.server;
+
+import org.jmessenger.Connection;
+import org.jmessenger.Message;
+import org.jmessenger.MessageType;
+import org.jmessenger.SequenceWindow;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledges the messages received from a client, one cumulative <code>ACK</code> per batch:
+ * after <code>BATCH_SIZE</code> messages, or <code>DELAY_MS</code> after the first unacknowledged one.
+ */
+class AckBatcher {
+    private static final int BATCH_SIZE = 16;
+    private static final long DELAY_MS = 50;
+    // one thread sends the delayed acknowledgements of all connections
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "Acknowledgements");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Connection connection;
+    private final SequenceWindow window;
+    private int pending = 0;
+    private boolean scheduled = false;
+
+    /**
+     * @param connection connection to send acknowledgements to
+     * @param window received message ids of the user; acknowledgements are taken from it under its lock
+     */
+    AckBatcher(Connection connection, SequenceWindow window) {
+        this.connection = connection;
+        this.window = window;
+    }
+
+    /**
+     * Register a message received from the client.
+     */
+    synchronized void received() {
+        pending++;
+        if (pending >= BATCH_SIZE) {
+            send();
+        } else if (!scheduled) {
+            scheduled = true;
+            scheduler.schedule(this::sendScheduled, DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void sendScheduled() {
+        scheduled = false;
+        if (pending > 0) send();
+    }
+
+    private void send() {
+        pending = 0;
+        Message ack = new Message(MessageType.ACK);
+        synchronized (window) {
+            ack.setSequence(window.getContiguous());
+        }
+        try {
+            connection.sendMessage(ack);
+        } catch (IOException e) {
+            // the client will resend unacknowledged messages after reconnecting
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package org.jmessenger.server;
+
+public class AttachmentException extends Exception {
+    public AttachmentException(String message) {
+        super(message);
+    }
+}
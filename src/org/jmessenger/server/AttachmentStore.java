@@ -0,0 +1,262 @@
+package org.jmessenger.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps attachments uploaded by users in spool files on the local disk.
+ * An upload is written chunk by chunk to the file "&lt;transfer id&gt;.part", so the file data never has to fit
+ * in memory, and it can be resumed from the last received offset after a failure.
+ * An upload not resumed within the expiry time is removed together with its spool file.
+ * <p>
+ * A completed upload is renamed to "&lt;transfer id&gt;", and the completed files found at startup are available
+ * again, as the archived notices about them are. They are kept for the retention time after completion,
+ * or forever if it is 0.
+ */
+class AttachmentStore {
+    private static final long EXPIRY_CHECK_MS = 60 * 1000;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "Attachment expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Path spoolDirectory;
+    private final long maxSize;
+    private final long uploadExpiryMs;
+    private final long retentionMs;
+    // All transfers known to the server, by transfer id
+    private final Map<Long, Transfer> transfers = new ConcurrentHashMap<>();
+
+    /**
+     * Create a store keeping its files in the given directory.
+     * Incomplete uploads left by a previous run are deleted, as their transfers are not known any more,
+     * and completed attachments are made available again.
+     * @param spoolDirectory directory for spool files, created if it does not exist
+     * @param maxSize maximum size of an attachment in bytes
+     * @param uploadExpiryMs time in milliseconds after which an incomplete upload without new chunks is removed
+     * @param retentionMs time in milliseconds after which a completed attachment is removed, 0 to keep it forever
+     * @throws IOException if the directory cannot be created or read
+     */
+    AttachmentStore(Path spoolDirectory, long maxSize, long uploadExpiryMs, long retentionMs) throws IOException {
+        this.spoolDirectory = Files.createDirectories(spoolDirectory);
+        this.maxSize = maxSize;
+        this.uploadExpiryMs = uploadExpiryMs;
+        this.retentionMs = retentionMs;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolDirectory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".part")) {
+                    Files.delete(file);
+                    continue;
+                }
+                long transferId;
+                try {
+                    transferId = Long.parseUnsignedLong(name);
+                } catch (NumberFormatException e) {
+                    // not an attachment
+                    continue;
+                }
+                // the owner and the name are only needed by uploads, and are kept in the archived notice
+                Transfer transfer = new Transfer("", name, Files.size(file), file);
+                transfer.complete = true;
+                transfer.lastActivity = Files.getLastModifiedTime(file).toMillis();
+                transfers.put(transferId, transfer);
+            }
+        }
+        scheduler.scheduleWithFixedDelay(this::removeExpired, EXPIRY_CHECK_MS, EXPIRY_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register an upload offered by a user, or find the one being resumed.
+     * @param owner name of the uploading user
+     * @param transferId id of the transfer, chosen by the client
+     * @param fileName name of the file, shown to other users
+     * @param size file size in bytes
+     * @return offset the upload must continue from
+     * @throws AttachmentException if the upload cannot be accepted
+     */
+    long offer(String owner, long transferId, String fileName, long size) throws AttachmentException {
+        if (fileName == null || fileName.equals("") || size < 0)
+            throw new AttachmentException("Incorrect attachment.");
+        if (size > maxSize)
+            throw new AttachmentException("Attachment is larger than " + maxSize + " bytes.");
+        Transfer transfer = transfers.computeIfAbsent(transferId,
+                id -> new Transfer(owner, fileName, size, spoolDirectory.resolve(Long.toUnsignedString(id) + ".part")));
+        synchronized (transfer) {
+            if (!transfer.owner.equals(owner) || transfer.size != size || transfer.complete || transfer.removed)
+                throw new AttachmentException("Transfer id is already in use.");
+            transfer.lastActivity = System.currentTimeMillis();
+            return transfer.received;
+        }
+    }
+
+    /**
+     * Append a chunk of an upload to its spool file.
+     * Chunks must arrive in order: a chunk not starting at the current end of the file is rejected.
+     * @param owner name of the uploading user
+     * @param transferId id of the transfer
+     * @param offset file offset of the chunk
+     * @param data chunk data
+     * @throws AttachmentException if the chunk does not fit the transfer
+     * @throws IOException if the spool file cannot be written
+     */
+    void write(String owner, long transferId, long offset, byte[] data) throws AttachmentException, IOException {
+        Transfer transfer = getUpload(owner, transferId);
+        synchronized (transfer) {
+            if (transfer.removed)
+                throw new AttachmentException("Upload of \"" + transfer.fileName + "\" has expired.");
+            if (data == null || offset != transfer.received || offset + data.length > transfer.size)
+                throw new AttachmentException("Unexpected chunk of \"" + transfer.fileName + "\".");
+            if (transfer.channel == null) {
+                // a new upload must not keep the tail of a stale spool file with the same name
+                transfer.channel = offset == 0
+                        ? FileChannel.open(transfer.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                           StandardOpenOption.TRUNCATE_EXISTING)
+                        : FileChannel.open(transfer.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                transfer.channel.write(buffer, offset + buffer.position());
+            }
+            transfer.received += data.length;
+            transfer.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Finish an upload, making the attachment available for download.
+     * @param owner name of the uploading user
+     * @param transferId id of the transfer
+     * @return the completed transfer
+     * @throws AttachmentException if not all the file data has been received
+     * @throws IOException if the spool file cannot be closed
+     */
+    Transfer complete(String owner, long transferId) throws AttachmentException, IOException {
+        Transfer transfer = getUpload(owner, transferId);
+        synchronized (transfer) {
+            if (transfer.removed)
+                throw new AttachmentException("Upload of \"" + transfer.fileName + "\" has expired.");
+            if (transfer.received != transfer.size)
+                throw new AttachmentException("Attachment \"" + transfer.fileName + "\" is incomplete.");
+            if (transfer.channel != null) {
+                transfer.channel.force(false);
+                transfer.channel.close();
+                transfer.channel = null;
+            } else {
+                // an empty file: no chunks were written
+                Files.write(transfer.path, new byte[0]);
+            }
+            // the final name tells the completed files from the incomplete ones after a restart
+            Path completed = spoolDirectory.resolve(Long.toUnsignedString(transferId));
+            Files.move(transfer.path, completed, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            transfer.path = completed;
+            transfer.complete = true;
+            transfer.lastActivity = System.currentTimeMillis();
+            return transfer;
+        }
+    }
+
+    /**
+     * Find a completed attachment to be downloaded.
+     * @param transferId id of the transfer
+     * @return the transfer, or null if there is no such complete attachment
+     */
+    Transfer getAttachment(long transferId) {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null) return null;
+        synchronized (transfer) {
+            return transfer.complete ? transfer : null;
+        }
+    }
+
+    /**
+     * Close the spool files of the incomplete uploads of a user who has disconnected.
+     * The uploads can still be resumed until they expire.
+     * @param owner name of the user
+     */
+    void release(String owner) {
+        for (Transfer transfer : transfers.values()) {
+            if (!transfer.owner.equals(owner)) continue;
+            synchronized (transfer) {
+                if (!transfer.complete) closeChannel(transfer);
+            }
+        }
+    }
+
+    // remove the incomplete uploads which have not received data for too long, and the attachments past retention
+    private void removeExpired() {
+        long expired = System.currentTimeMillis() - uploadExpiryMs;
+        long retained = retentionMs > 0 ? System.currentTimeMillis() - retentionMs : Long.MIN_VALUE;
+        Iterator<Transfer> iterator = transfers.values().iterator();
+        while (iterator.hasNext()) {
+            Transfer transfer = iterator.next();
+            synchronized (transfer) {
+                if (transfer.lastActivity > (transfer.complete ? retained : expired)) continue;
+                transfer.removed = true;
+                closeChannel(transfer);
+                iterator.remove();
+                try {
+                    Files.deleteIfExists(transfer.path);
+                } catch (IOException e) {
+                    e.printStackTrace( );
+                }
+            }
+        }
+    }
+
+    private static void closeChannel(Transfer transfer) {
+        if (transfer.channel == null) return;
+        try {
+            transfer.channel.close();
+        } catch (IOException e) {
+            // nothing more can be written to it anyway
+        }
+        transfer.channel = null;
+    }
+
+    private Transfer getUpload(String owner, long transferId) throws AttachmentException {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null || !transfer.owner.equals(owner) || transfer.complete)
+            throw new AttachmentException("Unknown transfer " + Long.toUnsignedString(transferId) + ".");
+        return transfer;
+    }
+
+    /**
+     * State of a single attachment transfer.
+     */
+    static class Transfer {
+        final String owner;
+        final String fileName;
+        final long size;
+        // the spool file, renamed when the upload is completed
+        Path path;
+        // number of bytes written to the spool file so far
+        long received = 0;
+        boolean complete = false;
+        // set when an expired upload is removed, for the threads which have found it before
+        boolean removed = false;
+        // time of the last chunk, or of the completion
+        long lastActivity = System.currentTimeMillis();
+        FileChannel channel;
+
+        Transfer(String owner, String fileName, long size, Path path) {
+            this.owner = owner;
+            this.fileName = fileName;
+            this.size = size;
+            this.path = path;
+        }
+    }
+}
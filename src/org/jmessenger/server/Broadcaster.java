@@ -0,0 +1,190 @@
+package org.jmessenger.server;
+
+import org.jmessenger.Connection;
+import org.jmessenger.Message;
+import org.jmessenger.MessageType;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Delivers broadcast messages to the connected users on a fixed set of worker threads.
+ * <p>
+ * Connections are partitioned into shards by user name, each shard being served by its own thread,
+ * so a broadcast to many users is spread over all cores instead of running on the sender's thread.
+ * A message is numbered and published to every shard queue once, under one lock,
+ * so all shards get the messages in the order of their sequence numbers,
+ * and every user receives the messages of each sender in the order they were sent.
+ * <p>
+ * Adding and removing connections goes through the same queues, so a new user gets
+ * exactly the messages numbered after the sequence number in its login confirmation.
+ * A reconnecting user first gets the kept messages it has missed, in the same stream.
+ * <p>
+ * A shard never waits for a recipient: a user with as many messages queued as the history keeps is too far behind,
+ * and is disconnected, so that the client reconnects and resumes from the history.
+ * The shard queues are bounded, so broadcasting waits while a shard is behind.
+ */
+class Broadcaster {
+    // maximum number of tasks queued for a shard
+    private static final int SHARD_QUEUE_CAPACITY = 4096;
+
+    private final MessageHistory history;
+    // a user with this many chat messages queued is too far behind, as it could not resume after them;
+    // a broadcast message is shared by all the queues, so the limit may be well above the capacity
+    // of the connection's chat lane
+    private final int maxBehind;
+    private final Shard[] shards;
+
+    /**
+     * Create a broadcaster and start its threads.
+     * @param history history numbering the broadcast messages
+     * @param threads number of shards and threads, 0 for the number of processors
+     */
+    Broadcaster(MessageHistory history, int threads) {
+        this.history = history;
+        maxBehind = history.getSize();
+        if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+        shards = new Shard[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Shard(i);
+            shards[i].setDaemon(true);
+            shards[i].start();
+        }
+    }
+
+    /**
+     * Send a message to all connected users.
+     * The message gets the next sequence number and is kept in the history for reconnecting clients.
+     * This method returns as soon as the message is queued for delivery, waiting while a shard queue is full.
+     * @param message broadcast message, must not be modified afterwards
+     */
+    synchronized void broadcast(Message message) {
+        history.append(message);
+        for (Shard shard : shards) {
+            shard.enqueue(() -> shard.deliver(message, maxBehind));
+        }
+    }
+
+    /**
+     * Start delivering broadcast messages to a user who has logged in.
+     * The user's shard first sends the <code>LOGIN_OK</code> message with the sequence number after which
+     * the messages follow: for a new session, the last message broadcast before, and for a resumed one,
+     * the message before the first kept one the client has missed, which are sent next.
+     * All the messages broadcast after follow in order.
+     * @param userName name of the user
+     * @param connection connection of the user
+     * @param downloadToken token for attachment downloads, sent as the text of <code>LOGIN_OK</code>
+     * @param resumePoint last sequence number received by a reconnecting client, -1 for a new session
+     */
+    synchronized void add(String userName, Connection connection, String downloadToken, long resumePoint) {
+        List<Message> missed = resumePoint < 0 ? Collections.emptyList() : history.since(resumePoint);
+        Message loginOk = new Message(MessageType.LOGIN_OK, downloadToken);
+        loginOk.setSequence(missed.isEmpty() ? history.getLastSequence() : missed.get(0).getSequence() - 1);
+        Shard shard = shardOf(userName);
+        shard.enqueue(() -> {
+            try {
+                // a control message is queued without waiting
+                connection.sendMessage(loginOk);
+                for (Message message : missed) {
+                    if (!connection.offerMessage(message, maxBehind)) {
+                        connection.abort();
+                        return;
+                    }
+                }
+                shard.connections.add(connection);
+            } catch (IOException e) {
+                // the user is gone already
+            }
+        });
+    }
+
+    /**
+     * Stop delivering broadcast messages to a user.
+     * @param userName name of the user
+     * @param connection connection of the user
+     */
+    void remove(String userName, Connection connection) {
+        Shard shard = shardOf(userName);
+        shard.enqueue(() -> shard.connections.remove(connection));
+    }
+
+    private Shard shardOf(String userName) {
+        return shards[Math.floorMod(userName.hashCode(), shards.length)];
+    }
+
+    /**
+     * A thread delivering messages to the connections of one shard.
+     * The list of connections is only used by this thread.
+     */
+    private static class Shard extends Thread {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private final List<Connection> connections = new ArrayList<>();
+
+        Shard(int number) {
+            super("Broadcast shard " + number);
+        }
+
+        void enqueue(Runnable task) {
+            synchronized (tasks) {
+                while (tasks.size() >= SHARD_QUEUE_CAPACITY) {
+                    try {
+                        tasks.wait();
+                    } catch (InterruptedException e) {
+                        // the task must not be lost, it may be a removal of a connection
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                tasks.add(task);
+                tasks.notifyAll();
+            }
+        }
+
+        // send a message to all the connections of the shard, dropping the closed ones and those too far behind
+        void deliver(Message message, int maxBehind) {
+            for (int i = connections.size() - 1; i >= 0; i--) {
+                Connection connection = connections.get(i);
+                try {
+                    if (connection.offerMessage(message, maxBehind)) continue;
+                    System.out.println("Disconnecting a client too far behind the broadcast messages");
+                    connection.abort();
+                } catch (IOException e) {
+                    // the connection is closed
+                }
+                connections.remove(i);
+            }
+        }
+
+        @Override
+        public void run() {
+            ArrayDeque<Runnable> batch = new ArrayDeque<>();
+            while (true) {
+                // take all the queued tasks at once, so that publishers wait for the lock less often
+                synchronized (tasks) {
+                    while (tasks.isEmpty()) {
+                        try {
+                            tasks.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    batch.addAll(tasks);
+                    tasks.clear();
+                    // wake up publishers waiting for room
+                    tasks.notifyAll();
+                }
+                Runnable task;
+                while ((task = batch.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace( );
+                    }
+                }
+            }
+        }
+    }
+}
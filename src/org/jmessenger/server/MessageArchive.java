@@ -0,0 +1,297 @@
+package org.jmessenger.server;
+
+import org.jmessenger.Message;
+import org.jmessenger.MessageType;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps all broadcast messages in an append-only file and the recent ones in a <code>SearchIndex</code>.
+ * The index is rebuilt from the file at startup, and found messages are read back from the file,
+ * so only the index has to fit in memory.
+ * <p>
+ * Each record of the file is an int length of the rest of the record, followed by the message type name,
+ * sequence number, timestamp, transfer id and offset (longs), sender and text (strings being an int length,
+ * -1 for null, and UTF-8 bytes). The type is kept by name, so that adding message types does not change
+ * the meaning of the file.
+ * <p>
+ * An incomplete record at the end, left by a crash, is dropped at startup. A complete record which cannot be
+ * read is skipped with a warning, and a damaged record length, after which no record can be found, stops the startup.
+ * <p>
+ * Added messages are written and indexed by a thread of the archive, so that broadcasting waits neither
+ * for the disk nor for searches holding the index; a message becomes searchable shortly after it is added.
+ */
+class MessageArchive {
+    // a longer record can only be a damaged one
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int LOAD_BUFFER_SIZE = 1024 * 1024;
+    // maximum number of messages waiting to be written; adding waits while the writer is this far behind
+    private static final int MAX_PENDING = 4096;
+
+    private final FileChannel channel;
+    private final SearchIndex index;
+    // messages added, but not yet written
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    // position of the end of the last complete record
+    private long end = 0;
+    private long lastSequence = 0;
+
+    /**
+     * Open the archive file, creating it if it does not exist, and index the messages it contains.
+     * @param path archive file
+     * @param maxIndexed number of the most recent messages to keep searchable
+     * @throws IOException if the file cannot be opened or read
+     */
+    MessageArchive(Path path, int maxIndexed) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = new SearchIndex(maxIndexed);
+        load();
+        Writer writer = new Writer();
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a message to be written to the archive and indexed.
+     * This method waits only while <code>MAX_PENDING</code> messages are waiting to be written.
+     * @param message broadcast message with a sequence number and a timestamp, must not be modified afterwards
+     */
+    void add(Message message) {
+        synchronized (pending) {
+            while (pending.size() >= MAX_PENDING) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    // the message must not be lost
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            pending.add(message);
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * Write a message to the archive and index it.
+     * A message which cannot be written is not archived, and the error is reported to the console.
+     */
+    private synchronized void write(Message message) {
+        ByteBuffer record = encode(message);
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record, end + record.position());
+            }
+        } catch (IOException e) {
+            // the next record overwrites whatever part of this one has been written
+            e.printStackTrace( );
+            return;
+        }
+        index.add(message, end);
+        end += record.limit();
+        lastSequence = message.getSequence();
+    }
+
+    /**
+     * Find the most recent messages matching the query.
+     * @param query search query
+     * @param limit maximum number of messages to find
+     * @return found messages, from the most recent one
+     * @throws IOException if the messages cannot be read from the file
+     */
+    List<Message> search(SearchQuery query, int limit) throws IOException {
+        return read(index.search(query, limit));
+    }
+
+    /**
+     * Get the most recent messages.
+     * @param count maximum number of messages
+     * @return messages, from the oldest one
+     * @throws IOException if the messages cannot be read from the file
+     */
+    List<Message> recent(int count) throws IOException {
+        return read(index.recent(count));
+    }
+
+    /**
+     * @return sequence number of the last archived message, 0 if there is none;
+     * messages still waiting to be written are not counted
+     */
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return number of searchable messages
+     */
+    int getIndexedCount() {
+        return index.size();
+    }
+
+    private List<Message> read(long[] positions) throws IOException {
+        List<Message> messages = new ArrayList<>(positions.length);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        for (long position : positions) {
+            length.clear();
+            readFully(length, position);
+            ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+            readFully(record, position + 4);
+            messages.add(decode(record));
+        }
+        return messages;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+        }
+        buffer.flip();
+    }
+
+    // read all complete records, index them and cut off an incomplete one at the end
+    private void load() throws IOException {
+        long size = channel.size();
+        // the stream is not closed, as it would close the channel
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel.position(0)), LOAD_BUFFER_SIZE));
+        while (true) {
+            int length;
+            byte[] record;
+            try {
+                length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    // space allocated for the last record, but never written
+                    if (length == 0 && isZero(in)) break;
+                    throw new IOException("Damaged record length " + length + " at position " + end + " of the archive");
+                }
+                record = new byte[length];
+                in.readFully(record);
+            } catch (EOFException e) {
+                break;
+            }
+            try {
+                Message message = decode(ByteBuffer.wrap(record));
+                index.add(message, end);
+                lastSequence = message.getSequence();
+            } catch (RuntimeException e) {
+                System.out.println("Skipping a damaged record at position " + end + " of the archive: " + e);
+            }
+            end += 4 + length;
+        }
+        if (size > end) {
+            System.out.println("Dropping an incomplete record of " + (size - end) + " bytes at the end of the archive");
+            channel.truncate(end);
+        }
+    }
+
+    // whether the rest of the stream is all zero bytes
+    private static boolean isZero(DataInputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) == 0) {
+        }
+        return b < 0;
+    }
+
+    /**
+     * A thread writing the added messages, in the order of adding.
+     */
+    private class Writer extends Thread {
+        Writer() {
+            super("Archive writer");
+        }
+
+        @Override
+        public void run() {
+            ArrayDeque<Message> batch = new ArrayDeque<>();
+            while (true) {
+                synchronized (pending) {
+                    while (pending.isEmpty()) {
+                        try {
+                            pending.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    batch.addAll(pending);
+                    pending.clear();
+                    // wake up publishers waiting for room
+                    pending.notifyAll();
+                }
+                Message message;
+                while ((message = batch.poll()) != null) {
+                    try {
+                        write(message);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace( );
+                    }
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer encode(Message message) {
+        byte[] sender = message.getSender() == null ? null : message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getText() == null ? null : message.getText().getBytes(StandardCharsets.UTF_8);
+        byte[] type = message.getType().name().getBytes(StandardCharsets.UTF_8);
+        int length = 4 + type.length + 4 * 8
+                + 4 + (sender == null ? 0 : sender.length) + 4 + (text == null ? 0 : text.length);
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        putBytes(record, type);
+        record.putLong(message.getSequence());
+        record.putLong(message.getTimestamp());
+        record.putLong(message.getTransferId());
+        record.putLong(message.getOffset());
+        putBytes(record, sender);
+        putBytes(record, text);
+        record.flip();
+        return record;
+    }
+
+    private static Message decode(ByteBuffer record) {
+        MessageType type = MessageType.valueOf(getString(record));
+        long sequence = record.getLong();
+        long timestamp = record.getLong();
+        long transferId = record.getLong();
+        long offset = record.getLong();
+        String sender = getString(record);
+        String text = getString(record);
+        Message message = type == MessageType.TEXT
+                ? new Message(type, text)
+                : new Message(type, transferId, offset, null);
+        message.setText(text);
+        message.setSender(sender);
+        message.setSequence(sequence);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+}
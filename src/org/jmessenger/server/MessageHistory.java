@@ -0,0 +1,80 @@
+package org.jmessenger.server;
+
+import org.jmessenger.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Numbers broadcast messages and keeps the most recent ones,
+ * so that a reconnected client can get the messages it has missed.
+ * All messages are also written to the archive, in the order of their sequence numbers,
+ * and numbering continues from the archive after a restart.
+ */
+class MessageHistory {
+    private final Message[] messages;
+    private final MessageArchive archive;
+    // sequence number of the last message added, 0 if there is none
+    private long lastSequence = 0;
+
+    /**
+     * Create a history keeping the given number of the most recent messages,
+     * starting with the most recent archived ones.
+     * @param size number of messages to keep
+     * @param archive archive of all messages
+     * @throws IOException if the archived messages cannot be read
+     */
+    MessageHistory(int size, MessageArchive archive) throws IOException {
+        messages = new Message[size];
+        this.archive = archive;
+        lastSequence = archive.getLastSequence();
+        for (Message message : archive.recent(size)) {
+            messages[(int) (message.getSequence() % messages.length)] = message;
+        }
+    }
+
+    /**
+     * Give the message the next sequence number and a timestamp, keep it in the history and archive it.
+     * @param message broadcast message, must not be modified afterwards
+     * @return sequence number of the message
+     */
+    synchronized long append(Message message) {
+        lastSequence++;
+        message.setSequence(lastSequence);
+        message.setTimestamp(System.currentTimeMillis());
+        messages[(int) (lastSequence % messages.length)] = message;
+        archive.add(message);
+        return lastSequence;
+    }
+
+    /**
+     * @return number of messages kept
+     */
+    int getSize() {
+        return messages.length;
+    }
+
+    /**
+     * @return sequence number of the last message broadcast
+     */
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Get the messages following the given sequence number, as far as they are kept.
+     * @param sequence last sequence number received by the client
+     * @return messages in the order of their sequence numbers
+     */
+    synchronized List<Message> since(long sequence) {
+        long first = Math.max(sequence + 1, Math.max(1, lastSequence - messages.length + 1));
+        List<Message> result = new ArrayList<>();
+        for (long s = first; s <= lastSequence; s++) {
+            Message message = messages[(int) (s % messages.length)];
+            // messages before a restart may be missing, if they were not archived
+            if (message != null && message.getSequence() == s) result.add(message);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package org.jmessenger.server;
+
+import org.jmessenger.Connection;
+import org.jmessenger.Message;
+import org.jmessenger.MessageType;
+import org.jmessenger.PresenceStatus;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks which users are online and their status, and keeps the clients' rosters up to date.
+ * <p>
+ * Every change of the roster gets the next version number. A client requests the roster with the version
+ * it has (0 if none), normally right after login, and gets the whole roster, or only the changes it has missed
+ * if they are still kept. From then on, changes are not sent one by one: every <code>TICK_MS</code> all the changes
+ * since a client's last update are coalesced into one <code>PRESENCE</code> message, so that a mass reconnect
+ * of many users costs each client one message per tick rather than one per user.
+ */
+class PresenceService {
+    private static final long TICK_MS = 250;
+    // number of recent changes kept for clients resuming with an older roster
+    private static final int MAX_CHANGES = 10000;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "Presence updates");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // online users and their status
+    private final Map<String, PresenceStatus> roster = new HashMap<>();
+    // current session of each online user
+    private final Map<String, Connection> sessions = new HashMap<>();
+    // recent changes, from the oldest one
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    // versions start from the start time, so that a client's version from before a restart is not mistaken for a current one
+    private long version = System.currentTimeMillis() << 16;
+    // Connections getting roster changes, with the roster version each one has been sent
+    private final Map<Connection, Long> subscribers = new HashMap<>();
+
+    /**
+     * Create the service and start sending coalesced roster changes.
+     */
+    PresenceService() {
+        scheduler.scheduleWithFixedDelay(this::sendChanges, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a user who has logged in to the roster.
+     * A new session of a user already online replaces the previous one, and resets the status.
+     * @param userName name of the user
+     * @param connection connection of the new session
+     */
+    synchronized void join(String userName, Connection connection) {
+        sessions.put(userName, connection);
+        if (roster.get(userName) != PresenceStatus.ONLINE) change(userName, PresenceStatus.ONLINE);
+    }
+
+    /**
+     * Change the status of an online user.
+     * @param userName name of the user
+     * @param status new status, other than <code>OFFLINE</code>
+     */
+    synchronized void setStatus(String userName, PresenceStatus status) {
+        if (status == PresenceStatus.OFFLINE || !roster.containsKey(userName) || roster.get(userName) == status) return;
+        change(userName, status);
+    }
+
+    /**
+     * Stop sending changes to a closed connection, and remove its user from the roster,
+     * unless the user has a newer session.
+     * @param userName name of the user
+     * @param connection connection of the user
+     */
+    synchronized void leave(String userName, Connection connection) {
+        subscribers.remove(connection);
+        if (sessions.get(userName) != connection) return;
+        sessions.remove(userName);
+        change(userName, PresenceStatus.OFFLINE);
+    }
+
+    /**
+     * Send the roster to a client and start sending it the changes.
+     * @param connection connection of the client
+     * @param knownVersion version of the roster the client has, 0 if none
+     */
+    synchronized void subscribe(Connection connection, long knownVersion) {
+        Message update = updateFrom(knownVersion);
+        // sent under the lock, so that no coalesced change can overtake it
+        try {
+            connection.sendMessage(update);
+            subscribers.put(connection, version);
+        } catch (IOException e) {
+            // the client is gone
+        }
+    }
+
+    private void change(String userName, PresenceStatus status) {
+        if (status == PresenceStatus.OFFLINE) roster.remove(userName);
+        else roster.put(userName, status);
+        version++;
+        changes.add(new Change(version, userName, status));
+        if (changes.size() > MAX_CHANGES) changes.removeFirst();
+    }
+
+    // the oldest roster version the kept changes lead from
+    private long oldestVersion() {
+        return changes.isEmpty() ? version : changes.peekFirst().version - 1;
+    }
+
+    // the changes after the given version, or the whole roster if they are not kept
+    private Message updateFrom(long knownVersion) {
+        if (knownVersion <= version && knownVersion >= oldestVersion()) return changesSince(knownVersion);
+        Message update = new Message(MessageType.ROSTER);
+        update.setRoster(new HashMap<>(roster));
+        update.setSequence(version);
+        return update;
+    }
+
+    // a PRESENCE message with the latest status of each user changed after the given version
+    private Message changesSince(long knownVersion) {
+        Map<String, PresenceStatus> changed = new LinkedHashMap<>();
+        Iterator<Change> newestFirst = changes.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Change change = newestFirst.next();
+            if (change.version <= knownVersion) break;
+            changed.putIfAbsent(change.userName, change.status);
+        }
+        Message update = new Message(MessageType.PRESENCE);
+        update.setRoster(changed);
+        update.setSequence(version);
+        return update;
+    }
+
+    /**
+     * Send each subscribed client the changes since its last update.
+     * Clients at the same version share one message.
+     */
+    private synchronized void sendChanges() {
+        Map<Long, Message> updates = new HashMap<>();
+        Iterator<Map.Entry<Connection, Long>> iterator = subscribers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Connection, Long> subscriber = iterator.next();
+            if (subscriber.getValue() == version) continue;
+            Message update = updates.computeIfAbsent(subscriber.getValue(), this::updateFrom);
+            try {
+                subscriber.getKey().sendMessage(update);
+                subscriber.setValue(version);
+            } catch (IOException e) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * A change of the status of a user.
+     */
+    private static class Change {
+        final long version;
+        final String userName;
+        final PresenceStatus status;
+
+        Change(long version, String userName, PresenceStatus status) {
+            this.version = version;
+            this.userName = userName;
+            this.status = status;
+        }
+    }
+}
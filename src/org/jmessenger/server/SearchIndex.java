@@ -0,0 +1,447 @@
+package org.jmessenger.server;
+
+import org.jmessenger.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory inverted index of broadcast messages, mapping each term to the list of messages containing it.
+ * <p>
+ * Messages are indexed in segments of <code>SEGMENT_SIZE</code> messages, numbered within a segment
+ * in the order of adding. A postings list is kept as the differences between successive message numbers,
+ * written as variable-length integers into a byte array, so a frequent term takes about a byte per message.
+ * A full segment is sealed: its terms and postings are packed into sorted primitive arrays.
+ * When the index holds more than the given number of messages, the oldest segments are evicted
+ * (the messages stay in the archive file, they are only not searchable).
+ * <p>
+ * Terms and senders are numbered by dictionaries shared by the segments, which count the sealed segments
+ * using each of them, so the words of evicted messages are dropped and their ids reused.
+ * <p>
+ * The index keeps the archive file position of each message rather than its text.
+ * Messages are expected in the order of their timestamps, so a time range is found by binary search.
+ */
+class SearchIndex {
+    private static final int SEGMENT_SIZE = 1 << 16;
+    // longer terms are cut, so that long words do not bloat the dictionary
+    private static final int MAX_TERM_LENGTH = 32;
+
+    private final int maxMessages;
+    // segments from the oldest one; the last one is being filled
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private int size = 0;
+    // Ids of the terms and senders of the indexed messages, shared by the segments to keep one copy of each string
+    private final Dictionary termIds = new Dictionary();
+    private final Dictionary senderIds = new Dictionary();
+    private long lastTimestamp = Long.MIN_VALUE;
+    // decoding buffers, reused by all searches
+    private final int[] candidates = new int[SEGMENT_SIZE];
+    private final int[] postings = new int[SEGMENT_SIZE];
+
+    /**
+     * Create an empty index.
+     * @param maxMessages number of the most recent messages to keep searchable, rounded up to whole segments
+     */
+    SearchIndex(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Index a message.
+     * @param message broadcast message with a timestamp
+     * @param position position of the message in the archive file
+     */
+    synchronized void add(Message message, long position) {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.count == SEGMENT_SIZE) {
+            if (segment != null) segment.seal(termIds, senderIds);
+            // the new segment is added after the eviction, so no segment uses ids without holding them
+            while (!segments.isEmpty() && size >= maxMessages) {
+                Segment evicted = segments.removeFirst();
+                evicted.release(termIds, senderIds);
+                size -= evicted.count;
+            }
+            segment = new Segment();
+            segments.addLast(segment);
+        }
+        int number = segment.count;
+        // a clock going back must not break the order of timestamps
+        lastTimestamp = Math.max(lastTimestamp, message.getTimestamp());
+        segment.positions[number] = position;
+        segment.timestamps[number] = lastTimestamp;
+        segment.senders[number] = message.getSender() == null ? -1 : senderIds.id(message.getSender());
+        for (String term : terms(indexedText(message))) {
+            segment.building.computeIfAbsent(term, t -> new PostingsBuilder()).add(number);
+        }
+        segment.count++;
+        size++;
+    }
+
+    /**
+     * Find the most recent messages matching the query.
+     * @param query search query; a message must contain all its terms
+     * @param limit maximum number of messages to find
+     * @return archive positions of the found messages, from the most recent one
+     */
+    synchronized long[] search(SearchQuery query, int limit) {
+        List<Long> found = new ArrayList<>();
+        int sender = -1;
+        if (query.getSender() != null) {
+            sender = senderIds.get(query.getSender());
+            if (sender == -1) return new long[0];
+        }
+        int[] terms = new int[query.getTerms().size()];
+        for (int i = 0; i < terms.length; i++) {
+            // the term may be only in the segment being filled, which has no term ids yet
+            terms[i] = termIds.get(query.getTerms().get(i));
+        }
+        Iterator<Segment> newestFirst = segments.descendingIterator();
+        while (newestFirst.hasNext() && found.size() < limit) {
+            Segment segment = newestFirst.next();
+            if (segment.count == 0
+                    || segment.timestamps[0] > query.getTo() || segment.timestamps[segment.count - 1] < query.getFrom())
+                continue;
+            int first = segment.firstAtOrAfter(query.getFrom());
+            int last = segment.firstAtOrAfter(query.getTo() == Long.MAX_VALUE ? Long.MAX_VALUE : query.getTo() + 1) - 1;
+            if (terms.length == 0) {
+                for (int number = last; number >= first && found.size() < limit; number--) {
+                    if (sender == -1 || segment.senders[number] == sender) found.add(segment.positions[number]);
+                }
+                continue;
+            }
+            int count = match(segment, terms, query.getTerms());
+            for (int i = count - 1; i >= 0 && found.size() < limit; i--) {
+                int number = candidates[i];
+                if (number < first) break;
+                if (number > last) continue;
+                if (sender == -1 || segment.senders[number] == sender) found.add(segment.positions[number]);
+            }
+        }
+        long[] result = new long[found.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = found.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Get the most recent indexed messages.
+     * @param count maximum number of messages
+     * @return archive positions of the messages, from the oldest one
+     */
+    synchronized long[] recent(int count) {
+        long[] result = new long[Math.min(count, size)];
+        int i = result.length;
+        Iterator<Segment> newestFirst = segments.descendingIterator();
+        while (i > 0 && newestFirst.hasNext()) {
+            Segment segment = newestFirst.next();
+            for (int number = segment.count - 1; number >= 0 && i > 0; number--) {
+                result[--i] = segment.positions[number];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of searchable messages
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Split a text into terms: runs of letters and digits, in lower case.
+     * @param text text to split, may be null
+     * @return terms in the order of their appearance, with repetitions
+     */
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) return terms;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean termChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (termChar && start < 0) {
+                start = i;
+            } else if (!termChar && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    // the text of a chat message without the "sender: " prefix, which is searched by the sender filter
+    private static String indexedText(Message message) {
+        String text = message.getText();
+        String prefix = message.getSender() + ": ";
+        if (text != null && message.getSender() != null && text.startsWith(prefix))
+            return text.substring(prefix.length());
+        return text;
+    }
+
+    /**
+     * Put into <code>candidates</code> the numbers of the segment messages containing all the terms.
+     * @return number of the messages found, in ascending order
+     */
+    private int match(Segment segment, int[] termIds, List<String> terms) {
+        // start from the shortest list, so that the candidates only get fewer
+        int shortest = -1;
+        int shortestLength = Integer.MAX_VALUE;
+        for (int i = 0; i < termIds.length; i++) {
+            int length = segment.postingsLength(termIds[i], terms.get(i));
+            if (length < 0) return 0;
+            if (length < shortestLength) {
+                shortest = i;
+                shortestLength = length;
+            }
+        }
+        int count = segment.decode(termIds[shortest], terms.get(shortest), candidates);
+        for (int i = 0; i < termIds.length && count > 0; i++) {
+            if (i == shortest) continue;
+            int other = segment.decode(termIds[i], terms.get(i), postings);
+            count = intersect(candidates, count, postings, other);
+        }
+        return count;
+    }
+
+    // keep in a the numbers present in b, both lists being sorted
+    private static int intersect(int[] a, int aCount, int[] b, int bCount) {
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < aCount && j < bCount; i++) {
+            while (j < bCount && b[j] < a[i]) j++;
+            if (j < bCount && b[j] == a[i]) a[count++] = a[i];
+        }
+        return count;
+    }
+
+    /**
+     * A postings list of the segment being filled.
+     */
+    private static class PostingsBuilder {
+        byte[] data = new byte[4];
+        int length = 0;
+        int last = -1;
+
+        void add(int number) {
+            // a term repeated in a message is listed once
+            if (number == last) return;
+            if (length + 5 > data.length) data = Arrays.copyOf(data, data.length * 2);
+            length = writeVarInt(data, length, number - last);
+            last = number;
+        }
+    }
+
+    /**
+     * Indexed data of up to <code>SEGMENT_SIZE</code> consecutive messages.
+     */
+    private static class Segment {
+        final long[] positions = new long[SEGMENT_SIZE];
+        final long[] timestamps = new long[SEGMENT_SIZE];
+        // sender ids, -1 if there is no sender
+        final int[] senders = new int[SEGMENT_SIZE];
+        int count = 0;
+        // postings by term while the segment is being filled, null after sealing
+        Map<String, PostingsBuilder> building = new HashMap<>();
+        // ids of the terms of a sealed segment, sorted, and the start of their postings in one array;
+        // starts has an extra element for the end of the last list
+        int[] terms;
+        int[] starts;
+        byte[] data;
+
+        /**
+         * Pack the postings of a full segment into arrays, registering its terms and senders in the dictionaries.
+         */
+        void seal(Dictionary termIds, Dictionary senderIds) {
+            for (int sender : distinctSenders()) {
+                senderIds.acquire(sender);
+            }
+            int[] ids = new int[building.size()];
+            PostingsBuilder[] lists = new PostingsBuilder[ids.length];
+            int n = 0;
+            int total = 0;
+            for (Map.Entry<String, PostingsBuilder> entry : building.entrySet()) {
+                ids[n] = termIds.id(entry.getKey());
+                termIds.acquire(ids[n]);
+                lists[n] = entry.getValue();
+                total += lists[n].length;
+                n++;
+            }
+            // sort the lists by term id: sort (id, index) pairs packed into longs
+            long[] order = new long[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = (long) ids[i] << 32 | i;
+            }
+            Arrays.sort(order);
+            terms = new int[n];
+            starts = new int[n + 1];
+            data = new byte[total];
+            int position = 0;
+            for (int i = 0; i < n; i++) {
+                PostingsBuilder list = lists[(int) order[i]];
+                terms[i] = (int) (order[i] >>> 32);
+                starts[i] = position;
+                System.arraycopy(list.data, 0, data, position, list.length);
+                position += list.length;
+            }
+            starts[n] = position;
+            building = null;
+        }
+
+        /**
+         * Release the terms and senders of an evicted sealed segment.
+         */
+        void release(Dictionary termIds, Dictionary senderIds) {
+            for (int term : terms) {
+                termIds.release(term);
+            }
+            for (int sender : distinctSenders()) {
+                senderIds.release(sender);
+            }
+        }
+
+        // the ids of the senders of the segment's messages, each one once
+        private int[] distinctSenders() {
+            int[] sorted = Arrays.copyOf(senders, count);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (sorted[i] != -1 && (n == 0 || sorted[n - 1] != sorted[i])) sorted[n++] = sorted[i];
+            }
+            return Arrays.copyOf(sorted, n);
+        }
+
+        /**
+         * @return number of bytes of the postings list of the term, -1 if the term is not in the segment
+         */
+        int postingsLength(int termId, String term) {
+            if (building != null) {
+                PostingsBuilder list = building.get(term);
+                return list == null ? -1 : list.length;
+            }
+            int i = termId < 0 ? -1 : Arrays.binarySearch(terms, termId);
+            return i < 0 ? -1 : starts[i + 1] - starts[i];
+        }
+
+        /**
+         * Decode the postings list of a term, which must be in the segment.
+         * @return number of the message numbers put into the array
+         */
+        int decode(int termId, String term, int[] numbers) {
+            byte[] bytes;
+            int start;
+            int end;
+            if (building != null) {
+                PostingsBuilder list = building.get(term);
+                bytes = list.data;
+                start = 0;
+                end = list.length;
+            } else {
+                int i = Arrays.binarySearch(terms, termId);
+                bytes = data;
+                start = starts[i];
+                end = starts[i + 1];
+            }
+            int count = 0;
+            int number = -1;
+            int position = start;
+            while (position < end) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                number += delta;
+                numbers[count++] = number;
+            }
+            return count;
+        }
+
+        /**
+         * @return number of the first message with a timestamp not less than the given one, or <code>count</code>
+         */
+        int firstAtOrAfter(long timestamp) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] < timestamp) low = middle + 1;
+                else high = middle;
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Numbers strings, counting the sealed segments which use each number.
+     * A string no sealed segment uses any more is dropped, and its number is given to a new string.
+     */
+    private static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private String[] strings = new String[1024];
+        private int[] references = new int[1024];
+        private int[] free = new int[16];
+        private int freeCount = 0;
+        private int nextId = 0;
+
+        /**
+         * @return id of the string, a new one if the string is not known
+         */
+        int id(String string) {
+            Integer id = ids.get(string);
+            if (id != null) return id;
+            int newId;
+            if (freeCount > 0) {
+                newId = free[--freeCount];
+            } else {
+                newId = nextId++;
+                if (newId == strings.length) {
+                    strings = Arrays.copyOf(strings, newId * 2);
+                    references = Arrays.copyOf(references, newId * 2);
+                }
+            }
+            strings[newId] = string;
+            ids.put(string, newId);
+            return newId;
+        }
+
+        /**
+         * @return id of the string, -1 if it is not known
+         */
+        int get(String string) {
+            Integer id = ids.get(string);
+            return id == null ? -1 : id;
+        }
+
+        void acquire(int id) {
+            references[id]++;
+        }
+
+        void release(int id) {
+            if (--references[id] > 0) return;
+            ids.remove(strings[id]);
+            strings[id] = null;
+            if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = id;
+        }
+    }
+
+    // write a non-negative number 7 bits per byte, the high bit marking that more bytes follow
+    private static int writeVarInt(byte[] bytes, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,66 @@
+package org.jmessenger.server;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A search request of a user: words a message must contain and optional filters.
+ * <p>
+ * The query text consists of words and filters separated by spaces:
+ * <code>from:&lt;user&gt;</code> limits the search to messages of the user,
+ * <code>after:&lt;yyyy-MM-dd&gt;</code> and <code>before:&lt;yyyy-MM-dd&gt;</code> limit it to messages
+ * sent on or after, and before the given date of the server time zone.
+ */
+class SearchQuery {
+    private final List<String> terms = new ArrayList<>();
+    private String sender;
+    // time range in milliseconds since the epoch, inclusive
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+
+    /**
+     * Parse a query text.
+     * @param text query text
+     * @return the query
+     * @throws DateTimeParseException if a date in a filter is incorrect
+     */
+    static SearchQuery parse(String text) throws DateTimeParseException {
+        SearchQuery query = new SearchQuery();
+        if (text == null) return query;
+        for (String word : text.trim().split("\\s+")) {
+            if (word.startsWith("from:") && word.length() > 5) {
+                query.sender = word.substring(5);
+            } else if (word.startsWith("after:")) {
+                query.from = startOfDay(word.substring(6));
+            } else if (word.startsWith("before:")) {
+                query.to = startOfDay(word.substring(7)) - 1;
+            } else {
+                query.terms.addAll(SearchIndex.terms(word));
+            }
+        }
+        return query;
+    }
+
+    private static long startOfDay(String date) throws DateTimeParseException {
+        return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    List<String> getTerms() {
+        return terms;
+    }
+
+    String getSender() {
+        return sender;
+    }
+
+    long getFrom() {
+        return from;
+    }
+
+    long getTo() {
+        return to;
+    }
+}
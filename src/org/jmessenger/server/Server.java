@@ -2,20 +2,76 @@ package org.jmessenger.server;
 
 import org.jmessenger.*;
 
+import javax.net.ssl.SSLEngine;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.format.DateTimeParseException;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 class Server {
+    // size of the buffer used to send attachments over TLS, where zero-copy transfer is not possible
+    private static final int DOWNLOAD_BUFFER_SIZE = 256 * 1024;
+    // length of a download token in bytes, sent as twice as many hex digits
+    private static final int DOWNLOAD_TOKEN_SIZE = 16;
+    // time given to a client to log in, so that silent connections do not keep their threads forever
+    private static final int LOGIN_TIMEOUT_MS = 60000;
+    // time given to a client of the file port to finish the handshake and send its request
+    private static final long DOWNLOAD_REQUEST_TIMEOUT_MS = 30000;
+    // a connection with this many messages queued in a lane is reported as stalled
+    private static final int STALLED_QUEUE_DEPTH = 128;
+    private static final long QUEUE_REPORT_MS = 10000;
+    // number of recent broadcast messages kept for reconnecting clients
+    private static final int HISTORY_SIZE = 10000;
+    // maximum number of messages in a search result
+    private static final int SEARCH_LIMIT = 50;
     private final ServerSocket serverSocket;
+    // Small socket buffers keep little data queued in the kernel ahead of control messages,
+    // which connections send before chat messages
+    private final int socketBufferSize;
+    // socket accepting attachment downloads
+    private final ServerSocketChannel fileServerChannel;
     private final LoginManager loginManager;
+    private final AttachmentStore attachmentStore;
+    // TLS settings and session cache, null if connections are not encrypted
+    private final TlsContext tlsContext;
     // One <code>Connection</code> object per client
-    private Map<String, Connection> connectionMap = new HashMap<>();
+    private final Map<String, Connection> connectionMap = new ConcurrentHashMap<>();
+    private final MessageArchive archive;
+    private final MessageHistory history;
+    private final Broadcaster broadcaster;
+    private final PresenceService presence = new PresenceService();
+    // Ids of the messages received from each user, kept across reconnections to drop resent duplicates
+    private final Map<String, SequenceWindow> receivedIds = new ConcurrentHashMap<>();
+    // Names of logged in users by their download token; the file port serves only holders of a token
+    private final Map<String, String> downloadTokens = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    // Closes file port connections which do not send their request in time; a blocking socket channel ignores
+    // the socket timeout, so a channel closed by another thread is the only way to stop its reads
+    private final ScheduledExecutorService downloadWatchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "Download request timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void main(String[] args) {
         // load server configuration from file
@@ -28,11 +84,25 @@ class Server {
         }
         // create a server and start it
         String port = properties.getProperty("SERVER_PORT");
+        String filePort = properties.getProperty("FILE_PORT");
+        String socketBufferSize = properties.getProperty("SOCKET_BUFFER_SIZE", "0");
+        String broadcastThreads = properties.getProperty("BROADCAST_THREADS", "0");
         Server server = null;
         try {
-            server = new Server(Integer.parseInt(port));
+            AttachmentStore attachmentStore = new AttachmentStore(
+                    Paths.get(properties.getProperty("ATTACHMENT_DIR", "spool").trim()),
+                    Long.parseLong(properties.getProperty("ATTACHMENT_MAX_SIZE", "1073741824").trim()),
+                    Long.parseLong(properties.getProperty("ATTACHMENT_EXPIRY_HOURS", "24").trim()) * 3600 * 1000,
+                    Long.parseLong(properties.getProperty("ATTACHMENT_RETENTION_DAYS", "30").trim()) * 24 * 3600 * 1000);
+            MessageArchive archive = new MessageArchive(
+                    Paths.get(properties.getProperty("HISTORY_FILE", "history.log").trim()),
+                    Integer.parseInt(properties.getProperty("SEARCH_INDEX_SIZE", "1000000").trim()));
+            System.out.println("Indexed " + archive.getIndexedCount() + " messages");
+            server = new Server(Integer.parseInt(port), Integer.parseInt(filePort),
+                    Integer.parseInt(socketBufferSize.trim()), TlsContext.fromProperties(properties, true),
+                    attachmentStore, archive, Integer.parseInt(broadcastThreads.trim()));
         } catch (Exception e) {
-            System.out.println("Failed to start a server.");
+            System.out.println("Failed to start a server: " + e.getMessage());
             return;
         }
         System.out.println("Server started");
@@ -42,12 +112,29 @@ class Server {
     /**
      * Creates a <code>ServerSocket</code> on the given port
      * @param serverPort port to listen to
+     * @param filePort port to accept attachment downloads on
+     * @param socketBufferSize size of socket send and receive buffers of chat connections, 0 for system default
+     * @param tlsContext TLS settings, or null to accept plain text connections
+     * @param attachmentStore storage of uploaded attachments
+     * @param archive archive of broadcast messages, searched by users
+     * @param broadcastThreads number of threads delivering broadcast messages, 0 for the number of processors
      * @throws IOException if I/O error occurs while opening the socket
      */
-    private Server(int serverPort) throws Exception {
+    private Server(int serverPort, int filePort, int socketBufferSize, TlsContext tlsContext,
+                   AttachmentStore attachmentStore, MessageArchive archive, int broadcastThreads) throws Exception {
+        this.socketBufferSize = socketBufferSize;
+        this.tlsContext = tlsContext;
+        this.attachmentStore = attachmentStore;
+        this.archive = archive;
+        this.history = new MessageHistory(HISTORY_SIZE, archive);
+        this.broadcaster = new Broadcaster(history, broadcastThreads);
         // create a server socket
         try {
-            serverSocket = new ServerSocket(serverPort);
+            serverSocket = new ServerSocket();
+            // the receive buffer of accepted sockets must be set before the server socket is bound
+            if (socketBufferSize > 0) serverSocket.setReceiveBufferSize(socketBufferSize);
+            serverSocket.bind(new InetSocketAddress(serverPort));
+            fileServerChannel = ServerSocketChannel.open().bind(new InetSocketAddress(filePort));
             loginManager = LoginManager.getInstance();
         } catch (IOException e) {
             System.out.println("Server: Failed to connect to the port " + serverPort);
@@ -63,15 +150,23 @@ class Server {
      * For each new established connection start a new thread to listen to it.
      */
     private void start() {
+        FileServer fileServer = new FileServer();
+        fileServer.setDaemon(true);
+        fileServer.start();
+        QueueMonitor queueMonitor = new QueueMonitor();
+        queueMonitor.setDaemon(true);
+        queueMonitor.start();
         while (true) {
-            Connection connection;
+            Socket socket;
             try {
-                Socket socket = serverSocket.accept( );
-                connection = new Connection(socket);
+                socket = serverSocket.accept( );
+                if (socketBufferSize > 0) socket.setSendBufferSize(socketBufferSize);
+                // let the system find out about peers which have gone without closing the connection
+                socket.setKeepAlive(true);
             } catch (Exception e) {
                 continue;
             }
-            ConnectionHandler connectionHandler = new ConnectionHandler(connection);
+            ConnectionHandler connectionHandler = new ConnectionHandler(socket);
             connectionHandler.setDaemon(true);
             connectionHandler.start();
         }
@@ -81,18 +176,39 @@ class Server {
      * A thread communicating with a particular connection.
      */
     private class ConnectionHandler extends Thread {
-        private final Connection connection;
+        private final Socket socket;
+        private Connection connection;
         private String userName = null;
-        public ConnectionHandler(Connection connection) {
-            this.connection = connection;
+        private String downloadToken;
+        // last sequence number received by a reconnecting client, -1 for a new session
+        private long resumePoint = -1;
+        private AckBatcher ackBatcher;
+        public ConnectionHandler(Socket socket) {
+            this.socket = socket;
         }
         @Override
         public void run() {
+            // open the connection here rather than in the accept loop,
+            // so that slow clients and TLS handshakes do not hold up other clients
+            try {
+                socket.setSoTimeout(LOGIN_TIMEOUT_MS);
+                SSLEngine engine = tlsContext == null ? null : tlsContext.createServerEngine();
+                connection = new Connection(socket, engine);
+            } catch (Exception e) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    // nothing to do, the connection is dropped anyway
+                }
+                return;
+            }
             try {
                 // request client name
-                while (userName == null || userName.equals("") || connectionMap.containsKey(userName)) {
+                while (userName == null || userName.equals("")) {
                     connection.sendMessage(new Message(MessageType.NAME_REQUEST));
-                    userName = connection.receiveMessage( ).getText( );
+                    Message reply = connection.receiveMessage( );
+                    userName = reply.getText( );
+                    if (reply.getType() == MessageType.RESUME) resumePoint = reply.getSequence();
                 }
                 // request client password
                 connection.sendMessage(new Message(MessageType.PASSWORD_REQUEST));
@@ -103,15 +219,40 @@ class Server {
                     loginManager.addUser(userName,password);
                 } else if (authResponse == LoginManager.AuthResponse.PASSWORD_INCORRECT) {
                     connection.sendMessage(new Message(MessageType.PASSWORD_INCORRECT));
+                    connection.close();
                     return;
                 }
-                connection.sendMessage(new Message(MessageType.LOGIN_OK));
+                socket.setSoTimeout(0);
             } catch (Exception e) {
-                // drop connection
+                // drop connection, which also stops its writer thread
+                try {
+                    connection.close();
+                } catch (IOException ex) {
+                    // the client is gone anyway
+                }
                 return;
             }
-            // authentication ok, process the user
-            connectionMap.put(userName, connection);
+            // authentication ok, process the user;
+            // a previous session of the user is replaced, it may be a broken connection the client has given up
+            Connection previous = connectionMap.put(userName, connection);
+            // join first, so that the user is not shown offline when the previous session leaves
+            presence.join(userName, connection);
+            if (previous != null) {
+                System.out.println("Replacing the previous session of user " + userName);
+                try {
+                    // without waiting for a peer which may be gone without closing the connection
+                    previous.abort();
+                } catch (IOException e) {
+                    // the previous client is gone anyway
+                }
+            }
+            downloadToken = newDownloadToken();
+            downloadTokens.put(downloadToken, userName);
+            // LOGIN_OK and the messages missed by a reconnecting client are sent by the broadcaster,
+            // in order with the broadcast messages
+            broadcaster.add(userName, connection, downloadToken, resumePoint);
+            SequenceWindow received = receivedIds.computeIfAbsent(userName, name -> new SequenceWindow(0));
+            ackBatcher = new AckBatcher(connection, received);
             System.out.println("Connected a new user: " + userName);
             // start listening to the client and broadcasting its messages
             while(true) {
@@ -119,23 +260,286 @@ class Server {
                 try {
                     message = connection.receiveMessage( );
                 } catch (Exception e) {
-                    continue;
+                    // the connection is broken, the client may reconnect and resume
+                    disconnect();
+                    return;
                 }
                 if (message.getType() == MessageType.DISCONNECT) {
-                    connectionMap.remove(userName);
-                    System.out.println("Disconnected user " + userName);
+                    disconnect();
                     return;
                 }
-                message.setText(userName + ": " + message.getText());
-                // broadcast the message
-                for (String name : connectionMap.keySet( )) {
-                    Connection c = connectionMap.get(name);
+                if (message.getType() == MessageType.ROSTER) {
+                    presence.subscribe(connection, message.getSequence());
+                    continue;
+                }
+                if (message.getType() == MessageType.PRESENCE) {
                     try {
-                        c.sendMessage(message);
-                    } catch (Exception e) {
-                        continue;
+                        presence.setStatus(userName, PresenceStatus.valueOf(message.getText()));
+                    } catch (IllegalArgumentException | NullPointerException e) {
+                        // unknown status, ignore it
+                    }
+                    continue;
+                }
+                if (message.getType() == MessageType.SEARCH) {
+                    search(message.getText());
+                    continue;
+                }
+                if (message.getType() == MessageType.ATTACHMENT_OFFER
+                        || message.getType() == MessageType.ATTACHMENT_CHUNK
+                        || message.getType() == MessageType.ATTACHMENT_COMPLETE) {
+                    processAttachment(message);
+                    continue;
+                }
+                if (message.getMessageId() != 0) {
+                    // a message resent by the client after a failure is acknowledged again, but not broadcast
+                    boolean isNew;
+                    synchronized (received) {
+                        isNew = received.add(message.getMessageId());
+                    }
+                    ackBatcher.received();
+                    if (!isNew) continue;
+                }
+                message.setText(userName + ": " + message.getText());
+                message.setSender(userName);
+                broadcast(message);
+            }
+        }
+
+        /**
+         * Remove the user from the connected ones and close its connection.
+         */
+        private void disconnect() {
+            presence.leave(userName, connection);
+            connectionMap.remove(userName, connection);
+            broadcaster.remove(userName, connection);
+            downloadTokens.remove(downloadToken);
+            attachmentStore.release(userName);
+            System.out.println("Disconnected user " + userName);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // the client is gone anyway
+            }
+        }
+
+        /**
+         * Search the archived messages and send the result to the client.
+         * A query which cannot be parsed gets a result with an error text and no messages.
+         * @param text query text
+         */
+        private void search(String text) {
+            Message result = new Message(MessageType.SEARCH_RESULT, text);
+            try {
+                result.setResults(withAvailability(archive.search(SearchQuery.parse(text), SEARCH_LIMIT)));
+            } catch (DateTimeParseException e) {
+                result.setText("Incorrect date \"" + e.getParsedString() + "\", use yyyy-MM-dd.");
+            } catch (IOException e) {
+                e.printStackTrace( );
+                result.setText("Failed to read the message history.");
+            }
+            try {
+                connection.sendMessage(result);
+            } catch (IOException e) {
+                // the client is gone, nothing to report
+            }
+        }
+
+        /**
+         * Process an attachment message from the client: accept an upload, store a chunk or finish an upload.
+         * When an upload is finished, all users get a notice about the new attachment instead of its content.
+         * Errors are reported to this client as a rejected offer, the upload may be resumed later.
+         * @param message <code>ATTACHMENT_*</code> message
+         */
+        private void processAttachment(Message message) {
+            long transferId = message.getTransferId();
+            try {
+                if (message.getType() == MessageType.ATTACHMENT_OFFER) {
+                    long offset = attachmentStore.offer(userName, transferId, message.getText(), message.getOffset());
+                    connection.sendMessage(new Message(MessageType.ATTACHMENT_OFFER, transferId, offset, null));
+                } else if (message.getType() == MessageType.ATTACHMENT_CHUNK) {
+                    attachmentStore.write(userName, transferId, message.getOffset(), message.getData());
+                } else {
+                    AttachmentStore.Transfer transfer = attachmentStore.complete(userName, transferId);
+                    System.out.println("User " + userName + " uploaded \"" + transfer.fileName + "\"");
+                    Message notice = new Message(MessageType.ATTACHMENT_COMPLETE, transferId, transfer.size, null);
+                    notice.setText(transfer.fileName);
+                    notice.setSender(userName);
+                    broadcast(notice);
+                }
+            } catch (AttachmentException | IOException e) {
+                Message rejection = new Message(MessageType.ATTACHMENT_OFFER, transferId, -1, null);
+                rejection.setText(e.getMessage());
+                try {
+                    connection.sendMessage(rejection);
+                } catch (IOException ex) {
+                    // the client is gone, nothing to report
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the notices of attachments which are no longer kept, as their size -1, so that clients do not offer them.
+     * @param messages archived messages, which may be modified
+     * @return the same messages
+     */
+    private List<Message> withAvailability(List<Message> messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            Message notice = messages.get(i);
+            if (notice.getType() != MessageType.ATTACHMENT_COMPLETE
+                    || attachmentStore.getAttachment(notice.getTransferId()) != null) continue;
+            Message removed = new Message(MessageType.ATTACHMENT_COMPLETE, notice.getTransferId(), -1, null);
+            removed.setText(notice.getText());
+            removed.setSender(notice.getSender());
+            removed.setSequence(notice.getSequence());
+            removed.setTimestamp(notice.getTimestamp());
+            messages.set(i, removed);
+        }
+        return messages;
+    }
+
+    // a random token, as hex digits
+    private String newDownloadToken() {
+        byte[] bytes = new byte[DOWNLOAD_TOKEN_SIZE];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Send a message to all connected users.
+     * The message gets the next sequence number and is kept in the history for reconnecting clients.
+     * @param message the <code>Message</code> object to be sent
+     */
+    private void broadcast(Message message) {
+        broadcaster.broadcast(message);
+    }
+
+    /**
+     * A thread reporting the connections whose outgoing queues keep growing,
+     * i.e. clients which do not take the messages sent to them.
+     */
+    private class QueueMonitor extends Thread {
+        QueueMonitor() {
+            super("Queue monitor");
+        }
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(QUEUE_REPORT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Map.Entry<String, Connection> entry : connectionMap.entrySet()) {
+                    int control = entry.getValue().getQueueDepth(Lane.CONTROL);
+                    int chat = entry.getValue().getQueueDepth(Lane.CHAT);
+                    if (control >= STALLED_QUEUE_DEPTH || chat >= STALLED_QUEUE_DEPTH)
+                        System.out.println("Stalled connection of user " + entry.getKey() + ": " + control
+                                + " control and " + chat + " chat messages queued");
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread accepting attachment downloads on the file port.
+     * Each download is served on its own thread.
+     */
+    private class FileServer extends Thread {
+        @Override
+        public void run() {
+            while (true) {
+                SocketChannel socketChannel;
+                try {
+                    socketChannel = fileServerChannel.accept();
+                } catch (IOException e) {
+                    continue;
+                }
+                DownloadHandler downloadHandler = new DownloadHandler(socketChannel);
+                downloadHandler.setDaemon(true);
+                downloadHandler.start();
+            }
+        }
+    }
+
+    /**
+     * A thread sending an attachment to a client.
+     * The client sends the transfer id and the offset to start from, both as 8-byte numbers,
+     * followed by the download token it got at login, as ASCII hex digits.
+     * The server replies with the file size (or -1 if there is no such attachment or the token is not valid)
+     * followed by the file data.
+     */
+    private class DownloadHandler extends Thread {
+        private final SocketChannel socketChannel;
+        public DownloadHandler(SocketChannel socketChannel) {
+            this.socketChannel = socketChannel;
+        }
+        @Override
+        public void run() {
+            ScheduledFuture<?> timeout = downloadWatchdog.schedule(() -> {
+                try {
+                    socketChannel.close();
+                } catch (IOException e) {
+                    // the client is dropped anyway
+                }
+            }, DOWNLOAD_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            try (SocketChannel socketChannel = this.socketChannel) {
+                ByteChannel channel = socketChannel;
+                if (tlsContext != null) {
+                    TlsChannel tlsChannel = new TlsChannel(socketChannel, tlsContext.createServerEngine());
+                    tlsChannel.handshake();
+                    channel = tlsChannel;
+                }
+                // read the request
+                ByteBuffer request = ByteBuffer.allocate(16 + 2 * DOWNLOAD_TOKEN_SIZE);
+                while (request.hasRemaining()) {
+                    if (channel.read(request) < 0) return;
+                }
+                if (!timeout.cancel(false)) return;
+                request.flip();
+                long transferId = request.getLong();
+                long offset = request.getLong();
+                String token = StandardCharsets.US_ASCII.decode(request).toString();
+                AttachmentStore.Transfer transfer = downloadTokens.containsKey(token)
+                        ? attachmentStore.getAttachment(transferId) : null;
+                long size = transfer == null || offset < 0 || offset > transfer.size ? -1 : transfer.size;
+                ByteBuffer response = ByteBuffer.allocate(8).putLong(size);
+                response.flip();
+                while (response.hasRemaining()) {
+                    channel.write(response);
+                }
+                if (size < 0) return;
+                // send the file
+                try (FileChannel file = FileChannel.open(transfer.path, StandardOpenOption.READ)) {
+                    if (channel == socketChannel) {
+                        // file data goes from the page cache to the socket inside the kernel, never entering the heap
+                        while (offset < size) {
+                            offset += file.transferTo(offset, size - offset, socketChannel);
+                        }
+                    } else {
+                        // TLS records are encrypted in user space, so copy through an off-heap buffer
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(DOWNLOAD_BUFFER_SIZE);
+                        while (offset < size) {
+                            buffer.clear();
+                            int n = file.read(buffer, offset);
+                            if (n < 0) break;
+                            offset += n;
+                            buffer.flip();
+                            while (buffer.hasRemaining()) {
+                                channel.write(buffer);
+                            }
+                        }
                     }
                 }
+                channel.close();
+            } catch (IOException e) {
+                // drop the download, the client may resume it
+            } finally {
+                timeout.cancel(false);
             }
         }
     }